@@ -23,6 +23,7 @@ class ApplicationImpl : Application(), ActivityLifecycleCallbacks {
         const val TAG = "ApplicationImpl"
         const val JOB_SCHEDULER_JOB_ID_AUTO_UPDATE = 1000
         const val JOB_SCHEDULER_JOB_ID_UPDATE_CHECK = 1001
+        const val JOB_SCHEDULER_JOB_ID_PREFETCH = 1002
 
         fun exitIfNotInitialized() {
             if (baseAppContext == null) {
@@ -21,6 +21,7 @@ import app.grapheneos.apps.util.toInt
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 class RpcProvider : ContentProvider() {
 
@@ -30,7 +31,8 @@ class RpcProvider : ContentProvider() {
                 val callingPackage = callingPackage!!
                 val pkgName = arg!!
                 val callback = extras?.maybeGetParcelable<Messenger>("callback")
-                CoroutineScope(Dispatchers.Main).launch {
+                // checks that don't need PackageState objects are performed off the main thread
+                CoroutineScope(Dispatchers.Default).launch {
                     val res = runCatching {
                         updatePackage(callingPackage, pkgName)
                     }
@@ -56,13 +58,13 @@ class RpcProvider : ContentProvider() {
             return false
         }
 
-        val pkgState = PackageStates.maybeGetPackageState(pkgName)
-        if (pkgState == null) {
+        val pkgSnapshot = PackageStates.snapshot.packages[pkgName]
+        if (pkgSnapshot == null) {
             Log.d(TAG, "$pkgName not found")
             return false
         }
 
-        if (!pkgState.rPackage.common.packagesAllowedToTriggerUpdate.contains(callingPackage)) {
+        if (!pkgSnapshot.rPackage.common.packagesAllowedToTriggerUpdate.contains(callingPackage)) {
             Log.d(TAG, "$callingPackage is not allowed to trigger updates of $pkgName")
             return false
         }
@@ -72,14 +74,29 @@ class RpcProvider : ContentProvider() {
             return false
         }
 
+        return withContext(Dispatchers.Main) {
+            updatePackageOnMainThread(pkgName)
+        }
+    }
+
+    private suspend fun updatePackageOnMainThread(pkgName: String): Boolean {
+        val TAG = "updatePackage"
+
         val repoUpdateError = PackageStates.requestRepoUpdateRetrying()
-        val pkg = pkgState.rPackage
 
         if (repoUpdateError != null) {
             Log.d(TAG, "unable to update repo", repoUpdateError.throwable)
             return false;
         }
 
+        // package might have been removed by the repo update
+        val pkgState = PackageStates.maybeGetPackageState(pkgName)
+        if (pkgState == null) {
+            Log.d(TAG, "$pkgName not found")
+            return false
+        }
+        val pkg = pkgState.rPackage
+
         if (pkgState.status() != PackageState.Status.OUT_OF_DATE) {
             Log.d(TAG, "$pkgName is not out-of-date")
             return false
@@ -46,6 +46,9 @@ class AutoUpdateJob : JobService() {
 
             if (repoUpdateError != null) {
                 showUpdateCheckFailedNotification(repoUpdateError)
+            } else if (!PackageStates.snapshot.hasPackagesEligibleForBulkUpdate()) {
+                // fast path that skips dependency resolution
+                showAllUpToDateNotification()
             } else {
                 val outdatedPackageGroups = collectOutdatedPackageGroups()
 
@@ -6,6 +6,7 @@ import android.content.SharedPreferences
 import android.util.Log
 import androidx.core.content.getSystemService
 import app.grapheneos.apps.ApplicationImpl.Companion.JOB_SCHEDULER_JOB_ID_AUTO_UPDATE
+import app.grapheneos.apps.ApplicationImpl.Companion.JOB_SCHEDULER_JOB_ID_PREFETCH
 import app.grapheneos.apps.ApplicationImpl.Companion.JOB_SCHEDULER_JOB_ID_UPDATE_CHECK
 import app.grapheneos.apps.R
 import app.grapheneos.apps.core.appContext
@@ -20,6 +21,7 @@ object AutoUpdatePrefs {
     val KEY_JOB_REPEAT_INTERVAL = appResources.getString(R.string.pref_key_background_update_check_interval)
     val KEY_PKG_AUTO_UPDATE_ENABLED = appResources.getString(R.string.pref_key_auto_update_packages)
     val KEY_JOB_NETWORK_TYPE = appResources.getString(R.string.pref_key_network_type_for_auto_update_job)
+    val KEY_BG_DOWNLOAD_RATE_LIMIT = appResources.getString(R.string.pref_key_background_download_rate_limit)
 
     private val jobScheduler: JobScheduler = appContext.getSystemService()!!
     private val prefs = getSharedPreferences(R.string.pref_file_settings)
@@ -46,6 +48,13 @@ object AutoUpdatePrefs {
         prefs.getString(KEY_JOB_REPEAT_INTERVAL, null)?.toLong() ?:
         appResources.getString(R.string.pref_def_background_update_check_interval).toLong()
 
+    // in bytes per second, 0 means "unlimited". See DownloadThrottle
+    fun getBackgroundDownloadRateLimit(): Long {
+        val kilobytes = prefs.getString(KEY_BG_DOWNLOAD_RATE_LIMIT, null)?.toLong() ?:
+            appResources.getString(R.string.pref_def_background_download_rate_limit).toLong()
+        return kilobytes * 1000L
+    }
+
     fun isAllowedToAutoUpdateNoCodePackages(): Boolean {
         return isPackageAutoUpdateEnabled() || prefs.getBoolean(
             appResources.getString(R.string.pref_key_always_allow_nocode_updates),
@@ -64,6 +73,10 @@ object AutoUpdatePrefs {
     // the device is being used. Auto update job supports network type constraints.
     //
     // Both of the jobs can be disabled by the user.
+    //
+    // Update check job also schedules the prefetch job, which downloads APKs of available updates
+    // into the package cache when the device is charging and is on an unmetered network, see
+    // ApkPrefetch. It's disabled together with the update check job.
 
     fun setupJobs() {
         updateJobs()
@@ -82,6 +95,7 @@ object AutoUpdatePrefs {
 
         val pendingUpdateCheckJob = pendingJobs.find { it.id == JOB_SCHEDULER_JOB_ID_UPDATE_CHECK }
         val pendingAutoUpdateJob = pendingJobs.find { it.id == JOB_SCHEDULER_JOB_ID_AUTO_UPDATE }
+        val pendingPrefetchJob = pendingJobs.find { it.id == JOB_SCHEDULER_JOB_ID_PREFETCH }
 
         if (!isBackgroundUpdateCheckEnabled()) {
             if (pendingUpdateCheckJob != null) {
@@ -94,6 +108,11 @@ object AutoUpdatePrefs {
                 Log.d(TAG, "auto-update job cancelled: $pendingAutoUpdateJob")
             }
 
+            if (pendingPrefetchJob != null) {
+                jobScheduler.cancel(JOB_SCHEDULER_JOB_ID_PREFETCH)
+                Log.d(TAG, "prefetch job cancelled: $pendingPrefetchJob")
+            }
+
             return
         }
 
@@ -130,6 +149,22 @@ object AutoUpdatePrefs {
         }
     }
 
+    fun schedulePrefetchJob() {
+        val jobInfo = JobInfo.Builder(JOB_SCHEDULER_JOB_ID_PREFETCH, componentName<PrefetchJob>()).run {
+            setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+            setRequiresCharging(true)
+            setPersisted(true)
+            build()
+        }
+
+        val scheduleRes = jobScheduler.schedule(jobInfo)
+        if (scheduleRes == JobScheduler.RESULT_SUCCESS) {
+            Log.d(TAG, "prefetch job scheduled")
+        } else {
+            Log.d(TAG, "unable to schedule prefetch job, schedule result: $scheduleRes")
+        }
+    }
+
     fun maybeScheduleAutoUpdateJob() {
         if (!isPackageAutoUpdateEnabled()) {
             return
@@ -0,0 +1,74 @@
+package app.grapheneos.apps.autoupdate
+
+import android.app.job.JobParameters
+import android.app.job.JobService
+import android.net.Network
+import android.util.Log
+import app.grapheneos.apps.ApplicationImpl
+import app.grapheneos.apps.PackageStates
+import app.grapheneos.apps.core.ApkPrefetch
+import app.grapheneos.apps.core.collectOutdatedPackageGroups
+import app.grapheneos.apps.util.checkMainThread
+import app.grapheneos.apps.util.isAppInstallationAllowed
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
+
+private const val TAG = "PrefetchJob"
+
+// Downloads APKs of available updates ahead of their installation, see ApkPrefetch.
+// Scheduled by UpdateCheckJob, runs only when the device is charging and is on an unmetered network
+class PrefetchJob : JobService() {
+    private var job: Job? = null
+
+    override fun onStartJob(jobParams: JobParameters): Boolean {
+        ApplicationImpl.exitIfNotInitialized()
+        Log.d(TAG, "onStartJob")
+        checkMainThread()
+
+        if (!isAppInstallationAllowed()) {
+            return false
+        }
+
+        val network: Network? = jobParams.network
+
+        if (network == null) {
+            Log.d(TAG, "jobParams.network == null")
+            return false
+        }
+
+        job = CoroutineScope(Dispatchers.Main).launch {
+            val repoUpdateError = PackageStates.requestRepoUpdateRetrying()
+
+            if (repoUpdateError == null && PackageStates.snapshot.hasPackagesEligibleForBulkUpdate()) {
+                val rPackages = collectOutdatedPackageGroups().flatten().distinctBy { it.packageName }
+                if (rPackages.isNotEmpty()) {
+                    ApkPrefetch.prefetchApks(network, rPackages)
+                }
+            }
+
+            job = null
+            jobFinished(jobParams, false)
+            Log.d(TAG, "finished")
+        }
+
+        return true
+    }
+
+    override fun onStopJob(params: JobParameters): Boolean {
+        checkMainThread()
+
+        // usually means that the device is no longer charging or is no longer on an unmetered network
+        Log.d(TAG, "onStopJob, reason: ${params.stopReason}")
+
+        val job = this.job
+        this.job = null
+        if (job != null) {
+            job.cancel()
+            // "true" means "reschedule the job"
+            return true
+        }
+        return false
+    }
+}
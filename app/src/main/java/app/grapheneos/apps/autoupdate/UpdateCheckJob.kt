@@ -44,6 +44,9 @@ class UpdateCheckJob : JobService() {
             val repoUpdateError = PackageStates.requestRepoUpdateRetrying()
             if (repoUpdateError != null) {
                 showUpdateCheckFailedNotification(repoUpdateError)
+            } else if (!PackageStates.snapshot.hasPackagesEligibleForBulkUpdate()) {
+                // fast path that skips dependency resolution
+                showAllUpToDateNotification()
             } else {
                 val outdatedPackageGroups = collectOutdatedPackageGroups()
 
@@ -52,6 +55,7 @@ class UpdateCheckJob : JobService() {
                 } else {
                     showUpdatesAvailableNotification(outdatedPackageGroups)
 
+                    AutoUpdatePrefs.schedulePrefetchJob()
                     AutoUpdatePrefs.maybeScheduleAutoUpdateJob()
                 }
             }
@@ -0,0 +1,343 @@
+package app.grapheneos.apps.core
+
+import android.net.Network
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants.O_CREAT
+import android.system.OsConstants.O_RDONLY
+import android.system.OsConstants.O_RDWR
+import android.system.OsConstants.SEEK_CUR
+import android.system.OsConstants.S_IRUSR
+import android.system.OsConstants.S_IWUSR
+import android.util.ArrayMap
+import android.util.Log
+import app.grapheneos.apps.PackageStates
+import app.grapheneos.apps.core.InstallTask.Companion.apkStoreDir
+import app.grapheneos.apps.core.InstallTask.Companion.downloadToFd
+import app.grapheneos.apps.core.InstallTask.Companion.findApplicablePatch
+import app.grapheneos.apps.core.InstallTask.Companion.fsyncAndRename
+import app.grapheneos.apps.core.InstallTask.Companion.onVerificationFailure
+import app.grapheneos.apps.core.InstallTask.Companion.openTempFileFd
+import app.grapheneos.apps.core.InstallTask.Companion.packageVersionCacheDir
+import app.grapheneos.apps.core.InstallTask.Companion.writeApkStoreRefs
+import app.grapheneos.apps.util.BufferPool
+import app.grapheneos.apps.util.ScopedFileDescriptor
+import app.grapheneos.apps.util.checkMainThread
+import app.grapheneos.apps.util.copyTo2
+import app.grapheneos.apps.util.lseekToStart
+import app.grapheneos.apps.util.megabytes
+import app.grapheneos.apps.util.sendfile
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableJob
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.job
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.EOFException
+import java.io.File
+import java.io.FileDescriptor
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.security.DigestInputStream
+import java.security.DigestOutputStream
+import java.security.GeneralSecurityException
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.GZIPInputStream
+import java.util.zip.ZipException
+import kotlin.coroutines.coroutineContext
+
+// Downloads APKs of pending updates into the APK store ahead of their installation, without
+// creating PackageInstaller sessions. Later installation (by AutoUpdateJob or by "Update all") then
+// finds them in the APK store, see InstallTask.obtainAndWriteApk().
+//
+// Prefetched APKs are referenced by their package version directory, and are subject to the regular
+// pruning (see prunePackageCache()). Prefetch is skipped for packages that don't fit into the package
+// cache size limit. APKs that installation reconstructs from a patch against the installed APK
+// aren't prefetched, their patch is much smaller and is downloaded by the install task itself.
+//
+// Prefetch is also started speculatively from the details screen, see prefetchSpeculatively().
+object ApkPrefetch {
+    private const val TAG = "ApkPrefetch"
+
+    // user who stays on the details screen for this long is likely to install the package
+    private const val SPECULATIVE_PREFETCH_DWELL_MS = 2000L
+    // speculative prefetch is limited to packages that would be installed almost immediately
+    private val SPECULATIVE_PREFETCH_MAX_SIZE = 50.megabytes
+
+    // package name -> its prefetch job, accessed only from the main thread
+    private val jobs = ArrayMap<String, Job>()
+    // completed when the active prefetchApks() call returns, accessed only from the main thread
+    private var activeRun: CompletableJob? = null
+
+    fun getJob(pkgName: String): Job? {
+        checkMainThread()
+        return jobs[pkgName]
+    }
+
+    // package cache is not pruned while prefetch is active, see PackageStates.scheduleCachePruning()
+    fun isActive(): Boolean {
+        checkMainThread()
+        return activeRun != null
+    }
+
+    // Called when the details screen of a package that can be installed or updated is shown, and
+    // cancelled when the user leaves it. Connection to the repo is pre-warmed right away, APKs are
+    // prefetched after a dwell time, on unmetered networks only. Data that was downloaded before
+    // cancellation is kept in the APK store, and counts towards the package cache size limit.
+    // Installation resumes from it
+    suspend fun prefetchSpeculatively(rPackage: RPackage) {
+        checkMainThread()
+
+        val apks = rPackage.collectNeededApks(appResources.configuration)
+        if (apks.isEmpty()) {
+            return
+        }
+
+        coroutineScope {
+            launch(Dispatchers.IO) {
+                RepoMirrors.prewarm(null)
+            }
+
+            // APKs that are reconstructed from a patch are downloaded as the patch
+            val pkgInfo = InstalledPackageIndex.getPackageInfo(rPackage.packageName)
+            val downloadSize = apks.sumOf { findApplicablePatch(it, pkgInfo)?.first?.size ?: it.compressedSize }
+            if (downloadSize > SPECULATIVE_PREFETCH_MAX_SIZE) {
+                return@coroutineScope
+            }
+
+            delay(SPECULATIVE_PREFETCH_DWELL_MS)
+
+            if (connectivityManager.isActiveNetworkMetered) {
+                return@coroutineScope
+            }
+            prefetchApks(null, listOf(rPackage))
+        }
+    }
+
+    // null network means "use the default network". Calls are serialized: this call waits for the
+    // prefetch that is already active to complete. APKs that it had prefetched are then found in
+    // the APK store
+    suspend fun prefetchApks(network: Network?, rPackages: List<RPackage>) {
+        checkMainThread()
+
+        while (true) {
+            val prevRun = activeRun
+            if (prevRun != null) {
+                prevRun.join()
+                continue
+            }
+            val pruningJob = PackageStates.packageCachePruningJob
+            if (pruningJob != null) {
+                pruningJob.join()
+                continue
+            }
+            break
+        }
+
+        val run = Job()
+        activeRun = run
+        try {
+            val config = appResources.configuration
+            val pkgApks = rPackages.map { rPackage ->
+                val pkgInfo = InstalledPackageIndex.getPackageInfo(rPackage.packageName)
+                rPackage to rPackage.collectNeededApks(config).filter { findApplicablePatch(it, pkgInfo) == null }
+            }
+
+            var availableCacheSize = withContext(Dispatchers.IO) {
+                MAX_PACKAGE_CACHE_SIZE - packageCacheSize()
+            }
+
+            val params = InstallParams(network, isUpdate = true, isUserInitiated = false,
+                priority = DownloadPriority.PREFETCH)
+
+            coroutineScope {
+                for ((rPackage, apks) in pkgApks) {
+                    val pkgName = rPackage.packageName
+                    if (apks.isEmpty()) {
+                        continue
+                    }
+
+                    val size = apks.sumOf { it.compressedSize }
+                    if (size > availableCacheSize) {
+                        Log.d(TAG, "skipped $pkgName: $size bytes don't fit into the package cache")
+                        continue
+                    }
+
+                    // install task of this package might have been started after its prefetch was
+                    // requested. Install task cancels prefetch of its package if it's started later
+                    if (PackageStates.getPackageState(pkgName).isInstalling()) {
+                        continue
+                    }
+                    availableCacheSize -= size
+
+                    val job = launch(Dispatchers.IO) {
+                        try {
+                            prefetchPackage(rPackage, apks, params)
+                        } catch (e: Exception) {
+                            if (e is CancellationException) {
+                                throw e
+                            }
+                            Log.d(TAG, "unable to prefetch $pkgName", e)
+                        }
+                    }
+                    jobs[pkgName] = job
+                    try {
+                        job.join()
+                    } finally {
+                        jobs.remove(pkgName)
+                    }
+                }
+            }
+        } finally {
+            activeRun = null
+            run.complete()
+        }
+    }
+
+    private suspend fun prefetchPackage(rPackage: RPackage, apks: List<Apk>, params: InstallParams) {
+        writeApkStoreRefs(packageVersionCacheDir(rPackage), apks)
+
+        val job = coroutineContext.job
+        coroutineScope {
+            apks.forEach { apk ->
+                launch {
+                    prefetchApk(apk, params, job)
+                }
+            }
+        }
+    }
+
+    // Same protocol as the one that is used by InstallTask.obtainAndWriteApk(), except that
+    // downloaded APKs are only verified, not decoded into a session
+    private suspend fun prefetchApk(apk: Apk, params: InstallParams, job: Job) {
+        val path = File(apkStoreDir, apk.storeName).path
+        val tmpPath = "$path.tmp"
+        val fullSize = apk.compressedSize
+        val progress = AtomicLong()
+
+        val fd = try {
+            Os.open(path, O_RDONLY, 0)
+        } catch (e: ErrnoException) {
+            null
+        }
+
+        if (fd == null) {
+            if (SegmentedDownload.isUsefulFor(apk)) {
+                val partPath = "$path.part"
+                apkStoreDir.mkdirs()
+                ScopedFileDescriptor(Os.open(partPath, O_RDWR or O_CREAT, S_IRUSR or S_IWUSR)).use { partFd ->
+                    val download = SegmentedDownload(params, owner = this, apk.downloadPath(), partFd.v,
+                        fullSize, "$partPath.state", job, progress)
+                    download.run()
+                    try {
+                        verifyOrDelete(apk, partFd.v, partPath, job, download.mirrorsUsed())
+                    } catch (e: GeneralSecurityException) {
+                        download.deleteState()
+                        throw e
+                    }
+                    fsyncAndRename(partFd.v, partPath, path)
+                    download.deleteState()
+                }
+                return
+            }
+
+            openTempFileFd(tmpPath).use { tmpFd ->
+                downloadAndStore(apk, params, tmpFd.v, tmpPath, path, curSize = 0L, job, progress)
+            }
+            return
+        }
+
+        ScopedFileDescriptor(fd).use { cachedFd ->
+            val curSize = Os.fstat(cachedFd.v).st_size
+            if (curSize == fullSize) {
+                // already downloaded
+                return
+            }
+            if (curSize > fullSize) {
+                File(path).delete()
+                throw IllegalStateException("unexpected size of $path: $curSize, max expected $fullSize")
+            }
+
+            openTempFileFd(tmpPath).use { tmpFd ->
+                sendfile(tmpFd.v, cachedFd.v, curSize)
+                check(Os.lseek(tmpFd.v, 0L, SEEK_CUR) == curSize)
+                downloadAndStore(apk, params, tmpFd.v, tmpPath, path, curSize, job, progress)
+            }
+        }
+    }
+
+    // Downloads the rest of the APK into tmpFd. Incomplete download is moved into the APK store, to
+    // allow resuming it later, complete download is moved there only after it's verified
+    private suspend fun downloadAndStore(apk: Apk, params: InstallParams, tmpFd: FileDescriptor,
+                                         tmpPath: String, path: String, curSize: Long, job: Job,
+                                         progress: AtomicLong) {
+        val mirrors = try {
+            downloadToFd(params, owner = this, apk.downloadPath(), tmpFd, curSize, apk.compressedSize, job, progress)
+        } catch (e: Throwable) {
+            fsyncAndRename(tmpFd, tmpPath, path)
+            throw e
+        }
+        try {
+            verifyOrDelete(apk, tmpFd, tmpPath, job, mirrors)
+        } catch (e: GeneralSecurityException) {
+            // stored prefix of the download might be the invalid part
+            File(path).delete()
+            throw e
+        }
+        fsyncAndRename(tmpFd, tmpPath, path)
+    }
+
+    // Decodes the APK to verify it, without writing it anywhere. Invalid APK is deleted, to not
+    // make its installation fail, mirrors that served it are deprioritized
+    private fun verifyOrDelete(apk: Apk, fd: FileDescriptor, path: String, job: Job,
+                               mirrors: List<RepoMirrors.Mirror>) {
+        lseekToStart(fd)
+
+        val sha256 = MessageDigest.getInstance("SHA-256")
+        val compressedSha256 = if (apk.hasCompressedSha256()) MessageDigest.getInstance("SHA-256") else null
+
+        val input = FileInputStream(fd).let {
+            if (compressedSha256 != null) DigestInputStream(it, compressedSha256) else it
+        }
+
+        val size = try {
+            GZIPInputStream(input, DEFAULT_BUFFER_SIZE).use {
+                val size = it.copyTo2(DigestOutputStream(NullOutputStream, sha256), job,
+                    bufSize = BufferPool.Size.FILE)
+                // hash the bytes that follow the end of compressed data, if any
+                BufferPool.withBuffer(BufferPool.Size.FILE) { buf ->
+                    while (input.read(buf) >= 0) {
+                        job.ensureActive()
+                    }
+                }
+                size
+            }
+        } catch (e: IOException) {
+            if (e !is ZipException && e !is EOFException) {
+                throw e
+            }
+            // invalid compressed data
+            -1L
+        }
+
+        val isValid = size == apk.size && apk.sha256Matches(sha256.digest())
+                && (compressedSha256 == null || apk.compressedSha256Matches(compressedSha256.digest()))
+        if (!isValid) {
+            File(path).delete()
+            val e = GeneralSecurityException("prefetched ${apk.name} of ${apk.pkg.packageName} is invalid")
+            onVerificationFailure(mirrors, e)
+            throw e
+        }
+    }
+
+    private object NullOutputStream : OutputStream() {
+        override fun write(b: Int) {}
+        override fun write(b: ByteArray, off: Int, len: Int) {}
+    }
+}
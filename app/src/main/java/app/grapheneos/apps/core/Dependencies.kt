@@ -10,16 +10,15 @@ import app.grapheneos.apps.ui.DetailsScreen
 import app.grapheneos.apps.ui.ErrorDialog
 import app.grapheneos.apps.util.ActivityUtils
 import app.grapheneos.apps.util.checkMainThread
-import app.grapheneos.apps.util.getSharedLibraries
 import app.grapheneos.apps.util.hasSystemFeature
 import kotlin.jvm.Throws
 
-class Dependency(string: String, repo: Repo) {
-    val packageName: String
+class Dependency(
+    val packageName: String,
     // intentionally not supporting more complex version constraints, they are not needed in practice
-    val minVersion: Long
-    val flags: Set<Flag>
-
+    val minVersion: Long,
+    val flags: Set<Flag>,
+) {
     enum class Flag {
         // Whether to ignore this dependency if it's missing from the parsed repo. Useful for
         // optional dependencies that are filtered out from the repo during parsing due to static
@@ -27,28 +26,31 @@ class Dependency(string: String, repo: Repo) {
         SkipIfMissing,
     }
 
-    init {
-        val parts = string.split(' ')
-
-        val manifestPackageName = parts[0]
-        packageName = repo.translateManifestPackageName(manifestPackageName)
-        minVersion = if (parts.size > 1) parts[1].toLong() else 0L
-        flags = if (parts.size <= 2) {
-            emptySet()
-        } else {
-            val flagStrings = parts[2].split(",")
-            val set = ArraySet<Flag>(flagStrings.size)
-            for (flagStr in flagStrings) {
-                val flag = try {
-                    Flag.valueOf(flagStr)
-                } catch (e: IllegalArgumentException) {
-                    // allow unknown flags for backwards compatibility
-                    Log.d("Dependency", "unknown flag $flagStr", e)
-                    continue
+    companion object {
+        fun parse(string: String, repo: Repo): Dependency {
+            val parts = string.split(' ')
+
+            val manifestPackageName = parts[0]
+            val packageName = repo.translateManifestPackageName(manifestPackageName)
+            val minVersion = if (parts.size > 1) parts[1].toLong() else 0L
+            val flags: Set<Flag> = if (parts.size <= 2) {
+                emptySet()
+            } else {
+                val flagStrings = parts[2].split(",")
+                val set = ArraySet<Flag>(flagStrings.size)
+                for (flagStr in flagStrings) {
+                    val flag = try {
+                        Flag.valueOf(flagStr)
+                    } catch (e: IllegalArgumentException) {
+                        // allow unknown flags for backwards compatibility
+                        Log.d("Dependency", "unknown flag $flagStr", e)
+                        continue
+                    }
+                    set.add(flag)
                 }
-                set.add(flag)
+                set
             }
-            set
+            return Dependency(packageName, minVersion, flags)
         }
     }
 }
@@ -132,7 +134,7 @@ private fun collectDependencies(dependant: String, dependencies: Array<Dependenc
                 }
 
                 // no public API to get info about a particular library
-                val isPresent = pkgManager.getSharedLibraries(flags).any {
+                val isPresent = InstalledPackageIndex.getSharedLibraries(flags).any {
                     val pkg = it.declaringPackage
                     pkg.packageName == depPackage.packageName && pkg.longVersionCode == depPackage.versionCode
                 }
@@ -0,0 +1,298 @@
+package app.grapheneos.apps.core
+
+import android.net.Network
+import android.os.SystemClock
+import android.util.Log
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import java.io.IOException
+
+// Lower ordinal means higher priority
+enum class DownloadPriority {
+    USER_INITIATED,
+    USER_BULK_UPDATE,
+    BACKGROUND,
+    PREFETCH,
+}
+
+// Schedules download units (APKs and signatures) of all install tasks.
+//
+// Waiting units are served in priority order. Within a priority class, tasks are served round-robin
+// to prevent a task with many units from starving other tasks. Higher-priority units may exceed the
+// concurrency limit by PREEMPTION_SLOTS when permits are held by lower-priority units, which means
+// that e.g. a user-initiated install doesn't wait for completion of background auto-update downloads.
+//
+// Concurrency limit is adjusted in AIMD style based on measured aggregate throughput and time to
+// first byte: it's increased by one while adding connections increases throughput, and is reduced
+// by a quarter when throughput or latency degrade, or when downloads fail. Initial limit is derived
+// from the bandwidth estimate of the network.
+//
+// Units that wait for DownloadThrottle don't count against the limit while they wait, their
+// aggregate rate is limited by the throttle.
+//
+// Safe to access from any thread.
+object DownloadScheduler {
+    private const val TAG = "DownloadScheduler"
+
+    private const val MIN_LIMIT = 2
+    private const val MAX_LIMIT = 8
+    private const val PREEMPTION_SLOTS = 2
+
+    // transfers that are shorter than this are dominated by latency and aren't used for measuring
+    // throughput
+    private const val MIN_SAMPLE_SIZE = 256 * 1024L
+    private const val WINDOW_MS = 2_000L
+
+    private val priorities = DownloadPriority.values()
+
+    private class Waiter(val owner: Any, val priority: DownloadPriority) {
+        val deferred = CompletableDeferred<Unit>()
+    }
+
+    // all fields below are guarded by this
+    private var limit = 3
+    private var active = 0
+    private val activeByPriority = IntArray(priorities.size)
+    // owner -> number of its active units
+    private val activeByOwner = HashMap<Any, Int>()
+    // per priority class: owner -> its waiting units, in round-robin order
+    private val waiters = Array(priorities.size) { LinkedHashMap<Any, ArrayDeque<Waiter>>() }
+
+    private var windowStart = 0L
+    private var windowBytes = 0L
+    // whether there were waiters during this window, i.e. whether downloads were limited by permits
+    private var windowHadWaiters = false
+    private var prevThroughput = 0.0
+    private var baselineTtfb = Long.MAX_VALUE
+    private var windowMaxTtfb = 0L
+
+    class Transfer internal constructor(private val start: Long, internal val priority: DownloadPriority) {
+        internal var ttfb = -1L
+        // compressed bytes transferred by this download
+        var bytes = 0L
+
+        // should be called after response headers are received
+        fun onResponse() {
+            ttfb = SystemClock.elapsedRealtime() - start
+        }
+
+        // called by DownloadThrottle before and after it waits
+        fun onThrottled(throttled: Boolean) {
+            onThrottleStateChanged(priority, throttled)
+        }
+    }
+
+    // owner is usually the InstallTask, it's used for fairness and for reporting queue position
+    suspend fun <T> withPermit(network: Network?, priority: DownloadPriority, owner: Any,
+                               block: suspend (Transfer) -> T): T {
+        acquire(network, priority, owner)
+        val transfer = Transfer(SystemClock.elapsedRealtime(), priority)
+        var failed = false
+        try {
+            return block(transfer)
+        } catch (e: IOException) {
+            failed = true
+            throw e
+        } finally {
+            release(priority, owner, transfer, failed)
+        }
+    }
+
+    // Returns 1-based position of the owner among owners that have waiting units, or 0 if the owner
+    // has no waiting units or at least one of its units is active
+    fun queuePosition(owner: Any): Int {
+        synchronized(this) {
+            if (activeByOwner.containsKey(owner)) {
+                return 0
+            }
+            var pos = 0
+            for (map in waiters) {
+                for (o in map.keys) {
+                    ++pos
+                    if (o === owner) {
+                        return pos
+                    }
+                }
+            }
+            return 0
+        }
+    }
+
+    private suspend fun acquire(network: Network?, priority: DownloadPriority, owner: Any) {
+        val waiter = Waiter(owner, priority)
+        synchronized(this) {
+            if (active == 0 && !hasWaiters()) {
+                // previous measurements might be for a different network
+                limit = initialLimit(network)
+                prevThroughput = 0.0
+                baselineTtfb = Long.MAX_VALUE
+                startWindow()
+            }
+            waiters[priority.ordinal].getOrPut(owner) { ArrayDeque() }.addLast(waiter)
+            windowHadWaiters = true
+            grantPermits()
+        }
+
+        try {
+            waiter.deferred.await()
+        } catch (e: CancellationException) {
+            synchronized(this) {
+                if (!removeWaiter(waiter)) {
+                    // permit was granted concurrently with cancellation
+                    onUnitCompleted(priority, owner)
+                    grantPermits()
+                }
+            }
+            throw e
+        }
+    }
+
+    private fun release(priority: DownloadPriority, owner: Any, transfer: Transfer, failed: Boolean) {
+        synchronized(this) {
+            onUnitCompleted(priority, owner)
+            onTransferCompleted(transfer, failed)
+            grantPermits()
+        }
+    }
+
+    // Throttled unit gives up its slot for the duration of its wait, other units may be granted
+    // permits in the meantime. Unit then resumes without waiting, which may briefly exceed the limit
+    private fun onThrottleStateChanged(priority: DownloadPriority, throttled: Boolean) {
+        synchronized(this) {
+            if (throttled) {
+                --active
+                --activeByPriority[priority.ordinal]
+                grantPermits()
+            } else {
+                ++active
+                ++activeByPriority[priority.ordinal]
+            }
+        }
+    }
+
+    private fun onUnitCompleted(priority: DownloadPriority, owner: Any) {
+        --active
+        --activeByPriority[priority.ordinal]
+        val n = activeByOwner[owner]!!
+        if (n == 1) {
+            activeByOwner.remove(owner)
+        } else {
+            activeByOwner[owner] = n - 1
+        }
+    }
+
+    private fun grantPermits() {
+        for (priority in priorities) {
+            val map = waiters[priority.ordinal]
+            while (map.isNotEmpty() && canGrant(priority)) {
+                // round-robin: take the next unit of the first owner, then move that owner to the end
+                val owner = map.keys.first()
+                val queue = map.remove(owner)!!
+                val waiter = queue.removeFirst()
+                if (queue.isNotEmpty()) {
+                    map[owner] = queue
+                }
+
+                ++active
+                ++activeByPriority[priority.ordinal]
+                activeByOwner[owner] = (activeByOwner[owner] ?: 0) + 1
+                waiter.deferred.complete(Unit)
+            }
+            if (map.isNotEmpty()) {
+                // lower-priority units wait for this class
+                return
+            }
+        }
+    }
+
+    private fun canGrant(priority: DownloadPriority): Boolean {
+        if (active < limit) {
+            return true
+        }
+        if (active >= limit + PREEMPTION_SLOTS) {
+            return false
+        }
+        for (i in priority.ordinal + 1 until priorities.size) {
+            if (activeByPriority[i] != 0) {
+                return true
+            }
+        }
+        return false
+    }
+
+    private fun removeWaiter(waiter: Waiter): Boolean {
+        val map = waiters[waiter.priority.ordinal]
+        val queue = map[waiter.owner] ?: return false
+        if (!queue.remove(waiter)) {
+            return false
+        }
+        if (queue.isEmpty()) {
+            map.remove(waiter.owner)
+        }
+        return true
+    }
+
+    private fun hasWaiters() = waiters.any { it.isNotEmpty() }
+
+    private fun onTransferCompleted(transfer: Transfer, failed: Boolean) {
+        if (failed) {
+            decreaseLimit("download failed")
+            return
+        }
+
+        if (transfer.ttfb >= 0) {
+            baselineTtfb = minOf(baselineTtfb, transfer.ttfb)
+            windowMaxTtfb = maxOf(windowMaxTtfb, transfer.ttfb)
+        }
+        windowBytes += transfer.bytes
+
+        val now = SystemClock.elapsedRealtime()
+        val windowDuration = now - windowStart
+        if (windowDuration < WINDOW_MS || windowBytes < MIN_SAMPLE_SIZE) {
+            return
+        }
+
+        val throughput = windowBytes.toDouble() / windowDuration
+
+        if (baselineTtfb != Long.MAX_VALUE && windowMaxTtfb > baselineTtfb * 4 + 500) {
+            // server or link is queueing requests
+            decreaseLimit("latency increased: ${windowMaxTtfb} ms, baseline ${baselineTtfb} ms")
+        } else if (prevThroughput > 0.0 && throughput < prevThroughput * 0.75) {
+            decreaseLimit("throughput decreased")
+        } else if (windowHadWaiters && throughput > prevThroughput * 1.1 && limit < MAX_LIMIT) {
+            ++limit
+            Log.d(TAG, "limit increased to $limit")
+        }
+
+        prevThroughput = throughput
+        startWindow()
+    }
+
+    private fun decreaseLimit(reason: String) {
+        val newLimit = maxOf(MIN_LIMIT, limit * 3 / 4)
+        if (newLimit != limit) {
+            limit = newLimit
+            Log.d(TAG, "limit decreased to $limit: $reason")
+        }
+        startWindow()
+    }
+
+    private fun startWindow() {
+        windowStart = SystemClock.elapsedRealtime()
+        windowBytes = 0L
+        windowHadWaiters = hasWaiters()
+        windowMaxTtfb = 0L
+    }
+
+    private fun initialLimit(network: Network?): Int {
+        val cm = connectivityManager
+        val caps = cm.getNetworkCapabilities(network ?: cm.activeNetwork) ?: return 3
+        val kbps = caps.linkDownstreamBandwidthKbps
+        return when {
+            kbps >= 100_000 -> 6
+            kbps >= 20_000 -> 4
+            kbps >= 5_000 -> 3
+            else -> MIN_LIMIT
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package app.grapheneos.apps.core
+
+import android.os.SystemClock
+import app.grapheneos.apps.autoupdate.AutoUpdatePrefs
+import app.grapheneos.apps.util.TokenBucket
+import app.grapheneos.apps.util.blockingDelay
+import kotlinx.coroutines.Job
+import java.io.FilterInputStream
+import java.io.InputStream
+
+// Limits the aggregate download rate of installs that weren't initiated by the user, to avoid
+// saturating shared links when many devices auto-update at the same time. The limit is set in
+// AutoUpdatePrefs, it's relaxed when the device is not in use and is on an unmetered network.
+// Rate is shared by all throttled downloads, so it depends on the default network rather than on
+// the network of the download that happens to refresh it.
+// User-initiated installs are never throttled. Throttled downloads don't hold their
+// DownloadScheduler permit while they wait for the throttle, see DownloadScheduler.Transfer.
+object DownloadThrottle {
+    private const val RELAXED_RATE_MULTIPLIER = 4
+    private const val RATE_REFRESH_INTERVAL_MS = 5_000L
+
+    private val bucket = TokenBucket(0L)
+    @Volatile
+    private var rateRefreshTimestamp = Long.MIN_VALUE
+
+    fun wrap(stream: InputStream, params: InstallParams, job: Job,
+             transfer: DownloadScheduler.Transfer): InputStream {
+        if (params.isUserInitiated) {
+            return stream
+        }
+        maybeRefreshRate()
+        if (bucket.rate == 0L) {
+            return stream
+        }
+        return ThrottledInputStream(stream, job, transfer)
+    }
+
+    private fun maybeRefreshRate() {
+        val now = SystemClock.elapsedRealtime()
+        if (now - rateRefreshTimestamp < RATE_REFRESH_INTERVAL_MS) {
+            return
+        }
+        rateRefreshTimestamp = now
+
+        var rate = AutoUpdatePrefs.getBackgroundDownloadRateLimit()
+        if (rate != 0L && !powerManager.isInteractive && !connectivityManager.isActiveNetworkMetered) {
+            rate *= RELAXED_RATE_MULTIPLIER
+        }
+        bucket.rate = rate
+    }
+
+    private class ThrottledInputStream(stream: InputStream, private val job: Job,
+                                       private val transfer: DownloadScheduler.Transfer) : FilterInputStream(stream) {
+        override fun read(): Int {
+            val b = super.read()
+            if (b >= 0) {
+                throttle(1L)
+            }
+            return b
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            val n = super.read(b, off, len)
+            if (n > 0) {
+                throttle(n.toLong())
+            }
+            return n
+        }
+
+        private fun throttle(n: Long) {
+            val delayMs = bucket.consume(n)
+            if (delayMs <= 0L) {
+                return
+            }
+            transfer.onThrottled(true)
+            try {
+                job.blockingDelay(delayMs)
+            } finally {
+                transfer.onThrottled(false)
+            }
+        }
+    }
+}
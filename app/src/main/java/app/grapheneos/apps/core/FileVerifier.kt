@@ -42,7 +42,37 @@ class FileVerifier(base64SignifyPublicKey: String) {
         publicKey = Ed25519PublicKeyParameters(decodedKey, KEY_ID_END)
     }
 
-    fun verifySignature(message: ByteArray, base64SignifySignature: String) {
+    fun verifySignature(message: ByteArray, base64SignifySignature: String) =
+        verifySignature(message, 0, message.size, base64SignifySignature)
+
+    fun verifySignature(message: ByteArray, offset: Int, length: Int, base64SignifySignature: String) {
+        val verifier = StreamingVerifier()
+        verifier.update(message, offset, length)
+        verifier.verify(base64SignifySignature)
+    }
+
+    // Allows to supply the message in chunks, e.g. while it's being downloaded or decompressed
+    inner class StreamingVerifier {
+        private val verifier: Signer = Ed25519Signer()
+
+        init {
+            verifier.init(false, publicKey)
+        }
+
+        fun update(message: ByteArray, offset: Int, length: Int) {
+            verifier.update(message, offset, length)
+        }
+
+        fun verify(base64SignifySignature: String) {
+            val signature = decodeSignature(base64SignifySignature)
+
+            if (!verifier.verifySignature(signature)) {
+                throw GeneralSecurityException("signature failed verification")
+            }
+        }
+    }
+
+    private fun decodeSignature(base64SignifySignature: String): ByteArray {
         val decodedSignature = Base64.decode(base64SignifySignature)
         if (decodedSignature.size != SIGNATURE_SIZE) {
             throw GeneralSecurityException("invalid signature size")
@@ -55,14 +85,6 @@ class FileVerifier(base64SignifyPublicKey: String) {
         if (!keyId.contentEquals(decodedSignature.copyOfRange(ALGORITHM_END, KEY_ID_END))) {
             throw GeneralSecurityException("signature key id does not match public key")
         }
-        val signature = decodedSignature.copyOfRange(KEY_ID_END, SIGNATURE_SIZE)
-
-        val verifier: Signer = Ed25519Signer()
-        verifier.init(false, publicKey)
-        verifier.update(message, 0, message.size)
-
-        if (!verifier.verifySignature(signature)) {
-            throw GeneralSecurityException("signature failed verification")
-        }
+        return decodedSignature.copyOfRange(KEY_ID_END, SIGNATURE_SIZE)
     }
 }
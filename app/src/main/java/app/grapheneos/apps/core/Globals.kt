@@ -8,14 +8,15 @@ import android.content.Context
 import android.content.pm.PackageInstaller
 import android.content.pm.PackageManager
 import android.content.res.Resources
+import android.net.ConnectivityManager
 import android.os.Build
 import android.os.Handler
 import android.os.Looper
+import android.os.PowerManager
 import android.os.UserManager
 import androidx.core.content.getSystemService
 import app.grapheneos.apps.ApplicationImpl
 import app.grapheneos.apps.util.hasSystemFeature
-import kotlinx.coroutines.sync.Semaphore
 import java.io.File
 import java.util.concurrent.Executor
 
@@ -46,6 +47,10 @@ val notificationManager: NotificationManager = appContext.getSystemService()!!
 
 val userManager: UserManager = appContext.getSystemService()!!
 
+val connectivityManager: ConnectivityManager = appContext.getSystemService()!!
+
+val powerManager: PowerManager = appContext.getSystemService()!!
+
 val localeManager: LocaleManager? = if (Build.VERSION.SDK_INT >= 33)
     appContext.getSystemService()!! else null
 
@@ -53,5 +58,3 @@ val filesDir: File = appContext.filesDir
 val fileForTemporaryFileDescriptor = File(filesDir, "tmp_fd")
 val cacheDir: File = appContext.cacheDir
 
-// limit the number of concurrent downloads
-val httpDownloadSemaphore = Semaphore(3)
@@ -30,6 +30,9 @@ class InstallParams(
     val network: Network?,
     val isUpdate: Boolean,
     val isUserInitiated: Boolean,
+    // see DownloadScheduler
+    val priority: DownloadPriority = if (isUserInitiated) DownloadPriority.USER_INITIATED
+        else DownloadPriority.BACKGROUND,
 )
 
 fun startPackageInstallFromUi(pkg: RPackage, isUpdate: Boolean, fragment: Fragment) {
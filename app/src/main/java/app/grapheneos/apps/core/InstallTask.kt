@@ -9,6 +9,7 @@ import android.content.pm.PackageInstaller.SessionParams
 import android.content.pm.PackageManager
 import android.os.Build
 import android.os.Bundle
+import android.os.SystemClock
 import android.system.ErrnoException
 import android.system.Os
 import android.system.OsConstants.O_CREAT
@@ -21,14 +22,20 @@ import android.system.OsConstants.S_IWUSR
 import android.util.Log
 import app.grapheneos.apps.PackageStates
 import app.grapheneos.apps.core.InstallerSessions.abandonSession
+import app.grapheneos.apps.util.BufferPool
+import app.grapheneos.apps.util.LimitedInputStream
+import app.grapheneos.apps.util.NonClosingInputStream
 import app.grapheneos.apps.util.ScopedFileDescriptor
+import app.grapheneos.apps.util.ScopedHttpConnection
+import app.grapheneos.apps.util.TeeInputStream
+import app.grapheneos.apps.util.applyBsdf2Patch
 import app.grapheneos.apps.util.checkMainThread
 import app.grapheneos.apps.util.copyTo2
 import app.grapheneos.apps.util.getPackageArchiveInfo
 import app.grapheneos.apps.util.getPackageInfoOrNull
 import app.grapheneos.apps.util.lseekToStart
 import app.grapheneos.apps.util.makeTemporaryFileDescriptor
-import app.grapheneos.apps.util.openConnection
+import app.grapheneos.apps.util.megabytes
 import app.grapheneos.apps.util.sendfile
 import app.grapheneos.apps.util.throwIfAppInstallationNotAllowed
 import app.grapheneos.apps.util.throwResponseCodeException
@@ -38,22 +45,28 @@ import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.async
+import kotlinx.coroutines.cancelAndJoin
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.job
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.sync.withPermit
+import java.io.EOFException
 import java.io.File
 import java.io.FileDescriptor
 import java.io.FileInputStream
 import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
 import java.lang.reflect.Method
 import java.net.HttpURLConnection.HTTP_PARTIAL
+import java.security.DigestInputStream
 import java.security.DigestOutputStream
 import java.security.GeneralSecurityException
 import java.security.MessageDigest
 import java.util.concurrent.atomic.AtomicLong
 import java.util.zip.GZIPInputStream
+import java.util.zip.ZipException
 import javax.net.ssl.HttpsURLConnection.HTTP_OK
 import kotlin.coroutines.coroutineContext
 
@@ -126,6 +139,8 @@ class InstallTask(
     }
 
     private val packageCachePruningJob: Job? = PackageStates.packageCachePruningJob
+    // prefetch can't be started for a package that has an install task, see prefetchApks()
+    private val prefetchJob: Job? = ApkPrefetch.getJob(rPackage.packageName)
 
     private suspend fun obtainAndWriteApks(session: Session) {
         if (!params.isUpdate && maybeReuseAvailableApks(session)) {
@@ -135,6 +150,10 @@ class InstallTask(
             // for its completion to improve reliability of apk downloads. Creation of new pruning
             // jobs is blocked when at least one installation is in progress
             packageCachePruningJob?.join()
+            // prefetch uses the same APK store files
+            prefetchJob?.cancelAndJoin()
+
+            writeApkStoreRefs(apksDir, apks)
 
             state = STATE_DOWNLOADING
             coroutineScope {
@@ -202,7 +221,7 @@ class InstallTask(
                 launch {
                     apkFile.inputStream().use { input ->
                     session.openWrite(apkFile.name, 0L, apkFile.length()).use { output ->
-                        input.copyTo2(output, job)
+                        input.copyTo2(output, job, bufSize = BufferPool.Size.FILE)
                     }}
                 }
             }
@@ -211,7 +230,9 @@ class InstallTask(
         return true
     }
 
-    private val apksDir = File(packageCacheDir, "${rPackage.common.packageName}/${rPackage.versionCode}")
+    // holds signatures and APK store references of this package version, APKs themselves are held
+    // in apkStoreDir
+    private val apksDir = packageVersionCacheDir(rPackage)
 
     // Note that files in cache dir may be removed by the OS at any time when it is running low
     // on storage space or if another app asks to allocate storage space.
@@ -225,49 +246,94 @@ class InstallTask(
     // - don't reopen files unless it can't be avoided (file descriptor remains valid even if its
     // file is removed)
 
-    private fun openTempFileFd(tmpPath: String): ScopedFileDescriptor {
-        apksDir.mkdirs()
-        // O_TRUNC to handle stale tmp files that may remain after process kill, power loss etc
-        val flags = O_RDWR or O_CREAT or O_TRUNC
-        val mode = S_IRUSR or S_IWUSR
-        return ScopedFileDescriptor(Os.open(tmpPath, flags, mode))
-    }
-
-    // Make sure file contents are fully synced before renaming it. Non-tmp file
-    // should always have valid contents, even if it's incomplete
-    private fun fsyncAndRename(tmpFd: FileDescriptor, tmpPath: String, path: String) {
-        Os.fsync(tmpFd)
-        try {
-            Os.rename(tmpPath, path)
-        } catch (e: ErrnoException) {
-            // rename is used only for caching purposes, it's fine if it fails
-            Log.d("fsyncAndRename", "", e)
-        }
-    }
-
     private suspend fun obtainAndWriteApk(apk: Apk, session: Session) {
-        val file = File(apksDir, "${apk.name}.gz")
+        // APK store files aren't used concurrently: they are shared only by versions of the same
+        // package (different packages can't have identical APKs, package name is a part of each
+        // APK), a package can't have more than one install task, and its prefetch is cancelled
+        // before its install task starts downloading, see obtainAndWriteApks()
+        val file = File(apkStoreDir, apk.storeName)
         val path = file.path
         val tmpPath = "$path.tmp"
 
-        // Check whether this apk is already partially or fully downloaded
-        try {
+        if (maybeWriteStoredApk(apk, path, tmpPath, session)) {
+            return
+        }
+
+        // cached apk not found, or it was invalid
+
+        if (maybeObtainAndWriteApkFromPatch(apk, session)) {
+            return
+        }
+
+        if (!apk.needsArchiveParsing() && !SegmentedDownload.isUsefulFor(apk)) {
+            openTempFileFd(tmpPath).use { tmpFd ->
+                var isValid = true
+                try {
+                    downloadAndWriteApkSinglePass(apk, tmpFd.v, session)
+                } catch (e: GeneralSecurityException) {
+                    isValid = false
+                    throw e
+                } finally {
+                    if (isValid) {
+                        fsyncAndRename(tmpFd.v, tmpPath, path)
+                    } else {
+                        File(tmpPath).delete()
+                    }
+                }
+            }
+            return
+        }
+
+        // These downloads are verified after they complete. If verification fails, download is
+        // retried, see onVerificationFailure()
+        val maxAttempts = RepoMirrors.ranked().size
+        var attempt = 1
+        while (true) {
+            try {
+                if (SegmentedDownload.isUsefulFor(apk)) {
+                    obtainAndWriteApkSegmented(apk, path, session)
+                } else {
+                    openTempFileFd(tmpPath).use { tmpFd ->
+                        val mirrors = downloadKeepingPrefix(apk, tmpFd.v, tmpPath, path, curSize = 0L)
+                        verifyAndStore(apk, tmpFd.v, tmpPath, path, mirrors, session)
+                    }
+                }
+                return
+            } catch (e: GeneralSecurityException) {
+                if (attempt++ == maxAttempts) {
+                    throw e
+                }
+                Log.w(TAG, "downloaded ${apk.name} of ${rPackage.packageName} is invalid, retrying", e)
+            }
+        }
+    }
+
+    // Writes the APK from the APK store, completes its download first if it's incomplete. Returns
+    // false if the APK store doesn't have this APK, or if its copy turned out to be invalid, in which
+    // case it's deleted, to not fail later installs the same way
+    private suspend fun maybeWriteStoredApk(apk: Apk, path: String, tmpPath: String, session: Session): Boolean {
+        val storedFd = try {
             Os.open(path, O_RDONLY, 0)
         } catch (e: ErrnoException) {
-            null
-        }?.let {
-            ScopedFileDescriptor(it).use { fd ->
-                val curSize = Os.fstat(fd.v).st_size
-                val fullSize = apk.compressedSize
+            return false
+        }
+
+        ScopedFileDescriptor(storedFd).use { fd ->
+            val curSize = Os.fstat(fd.v).st_size
+            val fullSize = apk.compressedSize
+            try {
+                if (curSize > fullSize) {
+                    throw GeneralSecurityException("unexpected size of $path: $curSize, max expected $fullSize")
+                }
+
+                downloadProgress.getAndAdd(curSize)
+
                 // apk is already fully downloaded
                 if (curSize == fullSize) {
-                    downloadProgress.getAndAdd(curSize)
                     uncompressAndWriteApk(fd.v, apk, session)
-                    return
+                    return true
                 }
 
-                check(curSize < fullSize) { "unexpected size of $path: $curSize, max expected ${fullSize}" }
-
                 // Copy incomplete apk into a tmp file. Could have renamed apk file into tmp file directly,
                 // but this would make things more complicated and brittle, because rename and write
                 // to file may get reordered before they are actually written to storage, which
@@ -275,26 +341,245 @@ class InstallTask(
                 openTempFileFd(tmpPath).use { tmpFd ->
                     sendfile(tmpFd.v, fd.v, curSize)
                     check(Os.lseek(tmpFd.v, 0L, SEEK_CUR) == curSize)
-                    downloadProgress.getAndAdd(curSize)
+                    val mirrors = downloadKeepingPrefix(apk, tmpFd.v, tmpPath, path, curSize)
+                    verifyAndStore(apk, tmpFd.v, tmpPath, path, mirrors, session)
+                }
+                return true
+            } catch (e: GeneralSecurityException) {
+                Log.w(TAG, "stored ${apk.name} of ${rPackage.packageName} is invalid, deleting it", e)
+                File(path).delete()
+                if (curSize == fullSize) {
+                    // download is started from scratch. Progress of completed downloads is reverted
+                    // by verifyAndStore()
+                    downloadProgress.addAndGet(-fullSize)
+                }
+                return false
+            }
+        }
+    }
+
+    // Downloads the rest of the APK into tmpFd. Incomplete download is moved into the APK store, to
+    // allow resuming it later
+    private suspend fun downloadKeepingPrefix(apk: Apk, tmpFd: FileDescriptor, tmpPath: String,
+                                              path: String, curSize: Long): List<RepoMirrors.Mirror> {
+        try {
+            return download(apk.downloadPath(), tmpFd, curSize, apk.compressedSize)
+        } catch (e: Throwable) {
+            fsyncAndRename(tmpFd, tmpPath, path)
+            throw e
+        }
+    }
+
+    // Fully downloaded APK is moved into the APK store only after it's verified
+    private fun verifyAndStore(apk: Apk, tmpFd: FileDescriptor, tmpPath: String, path: String,
+                               mirrors: List<RepoMirrors.Mirror>, session: Session) {
+        try {
+            uncompressAndWriteApk(tmpFd, apk, session)
+        } catch (e: GeneralSecurityException) {
+            onVerificationFailure(mirrors, e)
+            File(tmpPath).delete()
+            // download is retried from scratch
+            downloadProgress.addAndGet(-apk.compressedSize)
+            throw e
+        }
+        fsyncAndRename(tmpFd, tmpPath, path)
+    }
+
+    // source of APK patches, see maybeObtainAndWriteApkFromPatch()
+    private val installedPackageInfo: PackageInfo? by lazy {
+        if (params.isUpdate) pkgManager.getPackageInfoOrNull(rPackage.packageName) else null
+    }
+
+    // Reconstructs the APK by applying a patch (see ApkPatch) to the same APK of the installed
+    // version. Returns false if there's no applicable patch or if patching failed, full APK should
+    // be downloaded in that case
+    private suspend fun maybeObtainAndWriteApkFromPatch(apk: Apk, session: Session): Boolean {
+        val (patch, installedApkPath) = findApplicablePatch(apk, installedPackageInfo) ?: return false
+
+        makeTemporaryFileDescriptor().use { patchFd ->
+            try {
+                download(apk.patchPath(patch), patchFd.v, curSize = 0L, patch.size)
+                check(Os.fstat(patchFd.v).st_size == patch.size) { "unexpected size of patch" }
+                writeApkFromPatch(apk, installedApkPath, patchFd.v, session)
+            } catch (e: Exception) {
+                if (e is CancellationException) {
+                    throw e
+                }
+                Log.d(TAG, "unable to apply patch from ${patch.fromVersionCode} to ${apk.name} of ${rPackage.packageName}", e)
+                // full APK is accounted for in downloadTotal
+                downloadProgress.addAndGet(-Os.fstat(patchFd.v).st_size)
+                return false
+            }
+        }
+        downloadProgress.addAndGet(apk.compressedSize - patch.size)
+        return true
+    }
+
+    private fun writeApkFromPatch(apk: Apk, installedApkPath: String, patchFd: FileDescriptor, session: Session) {
+        makeTemporaryFileDescriptor().use { decompressedPatchFd ->
+            // diff and extra streams of a valid patch add up to the APK size, control stream is
+            // much smaller than them. Patch isn't verified, limit the size of its decompressed form
+            val maxDecompressedSize = apk.size * 2 + 1.megabytes
+            lseekToStart(patchFd)
+            GZIPInputStream(FileInputStream(patchFd), DEFAULT_BUFFER_SIZE).use { inputStream ->
+            FileOutputStream(decompressedPatchFd.v).use { outputStream ->
+                BufferPool.withBuffer(BufferPool.Size.FILE) { buf ->
+                    var total = 0L
+                    var len = inputStream.read(buf)
+                    while (len >= 0) {
+                        job.ensureActive()
+                        total += len
+                        check(total <= maxDecompressedSize) { "decompressed patch is too large" }
+                        outputStream.write(buf, 0, len)
+                        len = inputStream.read(buf)
+                    }
+                }
+            }}
+
+            makeTemporaryFileDescriptor().use { apkFd ->
+                val sha256 = MessageDigest.getInstance("SHA-256")
+                ScopedFileDescriptor(Os.open(installedApkPath, O_RDONLY, 0)).use { installedApkFd ->
+                DigestOutputStream(FileOutputStream(apkFd.v), sha256).use { outputStream ->
+                    applyBsdf2Patch(installedApkFd.v, decompressedPatchFd.v, outputStream, apk.size, job)
+                }}
+
+                if (!apk.sha256Matches(sha256.digest())) {
+                    throw GeneralSecurityException("sha256 mismatch for patched file ${apk.name}")
+                }
+
+                lseekToStart(apkFd.v)
+                FileInputStream(apkFd.v).use { inputStream ->
+                session.openWrite(apk.name, 0, apk.size).use { outputStream ->
+                    inputStream.copyTo2(outputStream, job, bufSize = BufferPool.Size.FILE)
+                }}
+            }
+        }
+    }
+
+    private fun ScopedHttpConnection.responseBody(transfer: DownloadScheduler.Transfer) =
+        DownloadThrottle.wrap(inputStream, params, job, transfer)
+
+    // Network bytes are written into the cache file while being uncompressed, hashed and written
+    // into the session, in a single pass. Unverified data may end up in the session, it's
+    // abandoned by run() if verification fails.
+    // If a mirror fails, including verification failure, download is restarted from scratch on the
+    // next mirror. If all of them fail, interrupted download is resumed from the cache file by
+    // obtainAndWriteApk()
+    private suspend fun downloadAndWriteApkSinglePass(apk: Apk, cacheFd: FileDescriptor, session: Session) {
+        DownloadScheduler.withPermit(params.network, params.priority, owner = this) { transfer ->
+            val hedge = apk.compressedSize <= RepoMirrors.HEDGING_MAX_SIZE
+            RepoMirrors.withConnectionFailover(params.network, apk.downloadPath(), hedge, {
+                setRequestProperty("Accept-Encoding", "identity")
+            }) { _, conn ->
+                job.ensureActive()
+
+                if (conn.responseCode != HTTP_OK) {
+                    throwResponseCodeException(conn.v)
+                }
+                transfer.onResponse()
+
+                // discard data of the previous mirror, if any
+                lseekToStart(cacheFd)
+                Os.ftruncate(cacheFd, 0L)
+
+                val sha256 = MessageDigest.getInstance("SHA-256")
+                val compressedSha256 = apk.maybeMakeCompressedDigest()
+
+                FileOutputStream(cacheFd).use { cacheOutput ->
+                LimitedInputStream(conn.responseBody(transfer), apk.compressedSize).use { input ->
+                    val teeOutput = if (compressedSha256 != null) DigestOutputStream(cacheOutput, compressedSha256) else cacheOutput
+                    val tee = TeeInputStream(input, teeOutput, downloadProgress)
                     try {
-                        download(apk.downloadUrl(), tmpFd.v, curSize, fullSize)
+                        // closing the decoder releases its resources, response body is drained below
+                        GZIPInputStream(NonClosingInputStream(tee), DEFAULT_BUFFER_SIZE).use { decodedInput ->
+                        session.openWrite(apk.name, 0, apk.size).use { sessionOutput ->
+                            val bytesCopied = decodedInput.copyTo2(DigestOutputStream(sessionOutput, sha256), job,
+                                bufSize = BufferPool.Size.FILE)
+                            if (bytesCopied != apk.size) {
+                                throw GeneralSecurityException("size mismatch for file ${apk.name}")
+                            }
+                        }}
+
+                        // end of compressed data might be followed by bytes that weren't consumed by the decoder
+                        BufferPool.withBuffer(BufferPool.Size.NETWORK) { buf ->
+                            while (tee.read(buf) >= 0) {
+                                job.ensureActive()
+                            }
+                        }
+
+                        if (tee.bytesRead != apk.compressedSize) {
+                            throw GeneralSecurityException("compressed size mismatch for file ${apk.name}")
+                        }
+                        apk.checkCompressedDigest(compressedSha256)
+                        if (!apk.sha256Matches(sha256.digest())) {
+                            throw GeneralSecurityException("sha256 mismatch for file ${apk.name}")
+                        }
+                    } catch (e: Exception) {
+                        if (e is IOException || e is GeneralSecurityException) {
+                            // next mirror starts from scratch
+                            downloadProgress.addAndGet(-tee.bytesRead)
+                        }
+                        if (e is ZipException) {
+                            throw GeneralSecurityException("invalid compressed file ${apk.name}", e)
+                        }
+                        throw e
                     } finally {
-                        fsyncAndRename(tmpFd.v, tmpPath, path)
+                        transfer.bytes += tee.bytesRead
                     }
-                    uncompressAndWriteApk(tmpFd.v, apk, session)
-                }
+                }}
             }
-            return
         }
+    }
 
-        // cached apk not found
-        openTempFileFd(tmpPath).use { tmpFd ->
-            try {
-                download(apk.downloadUrl(), tmpFd.v, curSize = 0L, apk.compressedSize)
-            } finally {
-                fsyncAndRename(tmpFd.v, tmpPath, path)
+    private fun Apk.maybeMakeCompressedDigest(): MessageDigest? =
+        if (hasCompressedSha256()) MessageDigest.getInstance("SHA-256") else null
+
+    private fun Apk.checkCompressedDigest(digest: MessageDigest?) {
+        if (digest != null && !compressedSha256Matches(digest.digest())) {
+            throw GeneralSecurityException("compressed sha256 mismatch for file $name")
+        }
+    }
+
+    // Decodes the APK from compressedFd into out, in the same pass verifies the compressed APK
+    // (if its hash is known) and the decoded APK
+    private fun decodeApk(compressedFd: FileDescriptor, apk: Apk, out: OutputStream) {
+        lseekToStart(compressedFd)
+
+        val sha256 = MessageDigest.getInstance("SHA-256")
+        val compressedSha256 = apk.maybeMakeCompressedDigest()
+
+        var input: InputStream = FileInputStream(compressedFd)
+        if (compressedSha256 != null) {
+            input = DigestInputStream(input, compressedSha256)
+        }
+
+        try {
+            GZIPInputStream(input, DEFAULT_BUFFER_SIZE).use { decodedInput ->
+                val bytesCopied = decodedInput.copyTo2(DigestOutputStream(out, sha256), job,
+                    bufSize = BufferPool.Size.FILE)
+                if (bytesCopied != apk.size) {
+                    throw GeneralSecurityException("size mismatch for file ${apk.name}")
+                }
+                if (compressedSha256 != null) {
+                    // hash the bytes that follow the end of compressed data, if any
+                    BufferPool.withBuffer(BufferPool.Size.FILE) { buf ->
+                        while (input.read(buf) >= 0) {
+                            job.ensureActive()
+                        }
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            // compressed file is local and complete, decompression errors mean that it's invalid
+            if (e is ZipException || e is EOFException) {
+                throw GeneralSecurityException("invalid compressed file ${apk.name}", e)
             }
-            uncompressAndWriteApk(tmpFd.v, apk, session)
+            throw e
+        }
+
+        apk.checkCompressedDigest(compressedSha256)
+        if (!apk.sha256Matches(sha256.digest())) {
+            throw GeneralSecurityException("sha256 mismatch for file ${apk.name}")
         }
     }
 
@@ -320,7 +605,7 @@ class InstallTask(
 
                 FileInputStream(fd.v).use { inputStream ->
                 session.openWrite(name, 0, fileSize).use { outputStream ->
-                    inputStream.copyTo2(outputStream, job)
+                    inputStream.copyTo2(outputStream, job, bufSize = BufferPool.Size.FILE)
                 }}
             }
             return
@@ -330,23 +615,21 @@ class InstallTask(
         openTempFileFd(tmpPath).use { tmpFd ->
             val downloadProgress = AtomicLong()
 
-            httpDownloadSemaphore.withPermit {
-                val url = "$REPO_BASE_URL/packages/${rPackage.manifestPackageName}/${rPackage.versionCode}/$downloadName"
+            DownloadScheduler.withPermit(params.network, params.priority, owner = this) { transfer ->
+                val filePath = "${rPackage.filesPath()}/$downloadName"
 
-                openConnection(params.network, url) {
+                // signatures are small, see RepoMirrors.connectHedged()
+                RepoMirrors.connectWithFailover(params.network, filePath, HTTP_OK, hedge = true) {
                     if (disableCompression) {
                         setRequestProperty("Accept-Encoding", "identity")
                     }
                 }.use { conn ->
                     job.ensureActive()
+                    transfer.onResponse()
 
-                    if (conn.v.responseCode != HTTP_OK) {
-                        throwResponseCodeException(conn.v)
-                    }
-
-                    conn.v.inputStream.use { inputStream ->
+                    conn.responseBody(transfer).use { inputStream ->
                     FileOutputStream(tmpFd.v).use { outputStream ->
-                        inputStream.copyTo2(outputStream, job, downloadProgress)
+                        transfer.bytes = inputStream.copyTo2(outputStream, job, downloadProgress)
                     }}
                 }
             }
@@ -358,27 +641,23 @@ class InstallTask(
 
             FileInputStream(tmpFd.v).use { inputStream ->
             session.openWrite(name, 0, fileSize).use { outputStream ->
-                inputStream.copyTo2(outputStream, job)
+                inputStream.copyTo2(outputStream, job, bufSize = BufferPool.Size.FILE)
             }}
         }
     }
 
     private fun uncompressAndWriteApk(compressedFd: FileDescriptor, apk: Apk, session: Session) {
-        lseekToStart(compressedFd)
-
-        val sha256 = MessageDigest.getInstance("SHA-256")
+        if (!apk.needsArchiveParsing()) {
+            // skip the intermediate uncompressed copy, see downloadAndWriteApkSinglePass()
+            session.openWrite(apk.name, 0, apk.size).use { outputStream ->
+                decodeApk(compressedFd, apk, outputStream)
+            }
+            return
+        }
 
         makeTemporaryFileDescriptor().use { uncompressedFd ->
-            GZIPInputStream(FileInputStream(compressedFd), DEFAULT_BUFFER_SIZE).use { inputStream ->
-            DigestOutputStream(FileOutputStream(uncompressedFd.v), sha256).use { outputStream ->
-                val bytesCopied = inputStream.copyTo2(outputStream, job)
-                if (bytesCopied != apk.size) {
-                    throw GeneralSecurityException("size mismatch for file ${apk.name}")
-                }
-            }}
-
-            if (!sha256.digest().contentEquals(apk.sha256)) {
-                throw GeneralSecurityException("sha256 mismatch for file ${apk.name}")
+            FileOutputStream(uncompressedFd.v).use { outputStream ->
+                decodeApk(compressedFd, apk, outputStream)
             }
 
             lseekToStart(uncompressedFd.v)
@@ -420,35 +699,42 @@ class InstallTask(
 
             FileInputStream(uncompressedFd.v).use { inputStream ->
             session.openWrite(apk.name, 0, apk.size).use { outputStream ->
-                inputStream.copyTo2(outputStream, job)
+                inputStream.copyTo2(outputStream, job, bufSize = BufferPool.Size.FILE)
             }}
         }
     }
 
-    private suspend fun download(url: String, fd: FileDescriptor, curSize: Long, fullSize: Long) {
-        check(curSize >= 0L && curSize < fullSize)
-
-        httpDownloadSemaphore.withPermit {
-            openConnection(params.network, url) {
-                setRequestProperty("Accept-Encoding", "identity")
-                if (curSize > 0) {
-                    addRequestProperty("Range", "bytes=${curSize}-")
-                }
-            }.use { conn ->
-                job.ensureActive()
-
-                if (conn.v.responseCode != if (curSize == 0L) HTTP_OK else HTTP_PARTIAL) {
-                    throwResponseCodeException(conn.v)
-                }
-
-                conn.v.inputStream.use { input ->
-                FileOutputStream(fd).use { output ->
-                    input.copyTo2(output, job, progress = downloadProgress)
-                }}
+    // Large APKs are downloaded in segments into "$path.part", see SegmentedDownload. Unlike tmp
+    // files of regular downloads, it's moved to path only after all segments are downloaded,
+    // because until then it's not a contiguous prefix of the APK. It's verified before the move
+    private suspend fun obtainAndWriteApkSegmented(apk: Apk, path: String, session: Session) {
+        val partPath = "$path.part"
+        apkStoreDir.mkdirs()
+        // no O_TRUNC, contents of an interrupted download are reused if its state file is valid
+        val flags = O_RDWR or O_CREAT
+        val mode = S_IRUSR or S_IWUSR
+        ScopedFileDescriptor(Os.open(partPath, flags, mode)).use { fd ->
+            val download = SegmentedDownload(params, owner = this, apk.downloadPath(), fd.v,
+                apk.compressedSize, "$partPath.state", job, downloadProgress)
+            download.run()
+            try {
+                uncompressAndWriteApk(fd.v, apk, session)
+            } catch (e: GeneralSecurityException) {
+                onVerificationFailure(download.mirrorsUsed(), e)
+                File(partPath).delete()
+                download.deleteState()
+                // download is retried from scratch
+                downloadProgress.addAndGet(-apk.compressedSize)
+                throw e
             }
+            fsyncAndRename(fd.v, partPath, path)
+            download.deleteState()
         }
     }
 
+    private suspend fun download(path: String, fd: FileDescriptor, curSize: Long, fullSize: Long) =
+        downloadToFd(params, owner = this, path, fd, curSize, fullSize, job, downloadProgress)
+
     private fun makeSessionParams(): SessionParams {
         return SessionParams(SessionParams.MODE_FULL_INSTALL).apply {
             // PackageInstaller requires manifest package name, even if it'll be renamed by original-package system
@@ -482,6 +768,8 @@ class InstallTask(
     var state: Int = STATE_PENDING_DOWNLOAD; private set
 
     companion object {
+        private const val TAG = "InstallTask"
+
         const val STATE_PENDING_DOWNLOAD = 0
         const val STATE_DOWNLOADING = 1
         const val STATE_PENDING_INSTALL = 2
@@ -491,6 +779,138 @@ class InstallTask(
         private var findPackageMethodInited = false
 
         val packageCacheDir = File(cacheDir, "packages")
+        // content-addressed storage of downloaded APKs, see Apk.storeName
+        val apkStoreDir = File(cacheDir, "apk_store")
+        const val APK_STORE_REFS_FILE_NAME = "apk_store_refs"
+
+        // noCode and isSharedLibrary packages are parsed before being written into the session, which
+        // requires a verified uncompressed copy of the APK
+        private fun Apk.needsArchiveParsing() = pkg.common.noCode || pkg.common.isSharedLibrary
+
+        // Returns the patch that produces apk from the same APK of the installed version and the
+        // path of that APK, or null if there's no patch that is worth applying, see ApkPatch
+        fun findApplicablePatch(apk: Apk, installed: PackageInfo?): Pair<ApkPatch, String>? {
+            if (installed == null || apk.needsArchiveParsing()) {
+                return null
+            }
+            val patch = apk.patches?.find { it.fromVersionCode == installed.longVersionCode } ?: return null
+            if (patch.size >= apk.compressedSize) {
+                return null
+            }
+            val appInfo = installed.applicationInfo ?: return null
+            val installedApkPath = ((appInfo.splitSourceDirs ?: emptyArray()) + appInfo.sourceDir)
+                .find { File(it).name == apk.name } ?: return null
+            return Pair(patch, installedApkPath)
+        }
+
+        fun packageVersionCacheDir(rPackage: RPackage) =
+            File(packageCacheDir, "${rPackage.common.packageName}/${rPackage.versionCode}")
+
+        // Records which APK store files are used by the package version. APK store file is deleted
+        // by prunePackageCache() when there are no package versions that refer to it
+        fun writeApkStoreRefs(pkgVersionDir: File, apks: List<Apk>) {
+            val path = File(pkgVersionDir, APK_STORE_REFS_FILE_NAME).path
+            val tmpPath = "$path.tmp"
+
+            val refs = LinkedHashSet<String>()
+            try {
+                refs.addAll(File(path).readLines())
+            } catch (e: IOException) {
+                // there are no references yet
+            }
+            apks.forEach { refs.add(it.storeName) }
+
+            openTempFileFd(tmpPath).use { fd ->
+                FileOutputStream(fd.v).use {
+                    it.write(refs.joinToString("\n").toByteArray())
+                }
+                fsyncAndRename(fd.v, tmpPath, path)
+            }
+        }
+
+        fun openTempFileFd(tmpPath: String): ScopedFileDescriptor {
+            File(tmpPath).parentFile!!.mkdirs()
+            // O_TRUNC to handle stale tmp files that may remain after process kill, power loss etc
+            val flags = O_RDWR or O_CREAT or O_TRUNC
+            val mode = S_IRUSR or S_IWUSR
+            return ScopedFileDescriptor(Os.open(tmpPath, flags, mode))
+        }
+
+        // Make sure file contents are fully synced before renaming it. Non-tmp file
+        // should always have valid contents, even if it's incomplete
+        fun fsyncAndRename(tmpFd: FileDescriptor, tmpPath: String, path: String) {
+            Os.fsync(tmpFd)
+            try {
+                Os.rename(tmpPath, path)
+            } catch (e: ErrnoException) {
+                // rename is used only for caching purposes, it's fine if it fails
+                Log.d("fsyncAndRename", "", e)
+            }
+        }
+
+        // Downloads [curSize, fullSize) range of the file at path and appends it to fd.
+        // owner is passed to DownloadScheduler.withPermit()
+        // Fails over to the next mirror (see RepoMirrors) when a mirror fails mid-transfer, download is
+        // resumed from the data that was already written. Returns the mirrors that served the data,
+        // which is needed for handling its verification failure, see onVerificationFailure()
+        suspend fun downloadToFd(params: InstallParams, owner: Any, path: String, fd: FileDescriptor,
+                                 curSize: Long, fullSize: Long, job: Job, progress: AtomicLong
+        ): List<RepoMirrors.Mirror> {
+            check(curSize >= 0L && curSize < fullSize)
+
+            val mirrorsUsed = ArrayList<RepoMirrors.Mirror>()
+
+            DownloadScheduler.withPermit(params.network, params.priority, owner) { transfer ->
+                RepoMirrors.withFailover { mirror ->
+                    val pos = Os.lseek(fd, 0L, SEEK_CUR)
+                    check(pos >= curSize && pos <= fullSize)
+                    if (pos == fullSize) {
+                        // previous mirror failed after sending the whole file
+                        return@withFailover
+                    }
+
+                    RepoMirrors.connect(mirror, params.network, path) {
+                        setRequestProperty("Accept-Encoding", "identity")
+                        if (pos > 0) {
+                            addRequestProperty("Range", "bytes=${pos}-")
+                        }
+                    }.use { conn ->
+                        job.ensureActive()
+
+                        if (conn.responseCode != if (pos == 0L) HTTP_OK else HTTP_PARTIAL) {
+                            throwResponseCodeException(conn.v)
+                        }
+                        transfer.onResponse()
+
+                        val start = SystemClock.elapsedRealtime()
+                        try {
+                            // mirror is not trusted to send no more than the rest of the file
+                            val body = DownloadThrottle.wrap(conn.inputStream, params, job, transfer)
+                            LimitedInputStream(body, fullSize - pos).use { input ->
+                            FileOutputStream(fd).use { output ->
+                                input.copyTo2(output, job, progress)
+                            }}
+                        } finally {
+                            // bytes that were received before the failure are kept
+                            val bytes = Os.lseek(fd, 0L, SEEK_CUR) - pos
+                            transfer.bytes += bytes
+                            if (bytes != 0L) {
+                                mirrorsUsed.add(mirror)
+                            }
+                        }
+                        RepoMirrors.onTransferCompleted(mirror, Os.lseek(fd, 0L, SEEK_CUR) - pos,
+                            SystemClock.elapsedRealtime() - start)
+                    }
+                }
+            }
+            return mirrorsUsed
+        }
+
+        // Deprioritizes mirrors that served a file that failed verification, which makes the next
+        // attempt to download it use other mirrors
+        fun onVerificationFailure(mirrors: Collection<RepoMirrors.Mirror>, e: GeneralSecurityException) {
+            mirrors.forEach { RepoMirrors.onFailure(it, e) }
+        }
 
         suspend fun multiInstall(tasks: List<InstallTask>): Deferred<PackageInstallerError?> {
             throwIfAppInstallationNotAllowed()
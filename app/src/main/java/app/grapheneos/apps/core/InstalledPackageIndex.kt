@@ -0,0 +1,107 @@
+package app.grapheneos.apps.core
+
+import android.content.pm.PackageInfo
+import android.content.pm.SharedLibraryInfo
+import android.os.SystemClock
+import app.grapheneos.apps.util.getPackageInfoOrNull
+import app.grapheneos.apps.util.getSharedLibraries
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+
+// Cache of PackageInfos of installed packages and of shared libraries. PackageInfos are looked up
+// one package at a time and only for packages that are asked for (usually the ones that are in the
+// repo), pkgManager.getInstalledPackages() is not cached by the OS and is much slower. Cached
+// entries are then updated from ACTION_PACKAGE_* broadcasts that are received by PackageStates.
+// This avoids repeated PackageManager IPCs for the same package in repo filtering,
+// PackageStates.updateRepo(), dependency resolution and package cache pruning.
+//
+// Safe to access from any thread.
+object InstalledPackageIndex {
+    // null PackageInfo means that the package is not installed
+    private class Entry(val pi: PackageInfo?)
+
+    // package name -> its PackageInfo
+    private val packages = ConcurrentHashMap<String, Entry>()
+
+    private class SharedLibrariesSnapshot(val list: List<SharedLibraryInfo>, val timestamp: Long)
+
+    // PackageManager flags -> snapshot. Dropped on each package change
+    private val sharedLibraries = ConcurrentHashMap<Long, SharedLibrariesSnapshot>()
+    // incremented on each package change, guarded by this
+    private var changeCount = 0L
+
+    // Changes of packages in other users are not broadcast to this user, which means that
+    // snapshots that were taken with non-zero flags (e.g. MATCH_ANY_USER) can't be kept up-to-date
+    // via broadcasts. Such snapshots are reused only for a short time, e.g. during resolution of
+    // dependencies of a batch of packages
+    private const val NON_DEFAULT_FLAGS_SNAPSHOT_MAX_AGE_MS = 10_000L
+
+    fun getPackageInfo(packageName: String): PackageInfo? {
+        packages.get(packageName)?.let { return it.pi }
+
+        val prevChangeCount = synchronized(this) { changeCount }
+        val pi = pkgManager.getPackageInfoOrNull(packageName)
+        synchronized(this) {
+            // don't cache the result if it might have been obtained before the latest package change
+            if (changeCount == prevChangeCount) {
+                packages.put(packageName, Entry(pi))
+            }
+        }
+        return pi
+    }
+
+    // Looks up PackageInfos that aren't cached yet in parallel, which speeds up the subsequent
+    // sequential lookups, e.g. in PackageStates.prepareRepoUpdate()
+    suspend fun prefetch(packageNames: Collection<String>) {
+        val missing = packageNames.filter { !packages.containsKey(it) }
+        if (missing.isEmpty()) {
+            return
+        }
+        val numCpus = Runtime.getRuntime().availableProcessors()
+        val unitSize = (missing.size + numCpus - 1) / numCpus
+
+        coroutineScope {
+            missing.chunked(unitSize).forEach { unit ->
+                launch(Dispatchers.IO) {
+                    unit.forEach { getPackageInfo(it) }
+                }
+            }
+        }
+    }
+
+    // Called when ACTION_PACKAGE_{ADDED,CHANGED,REPLACED,REMOVED} is received for this package.
+    // Returns its updated PackageInfo
+    fun onPackageChanged(packageName: String): PackageInfo? {
+        val pi = pkgManager.getPackageInfoOrNull(packageName)
+
+        synchronized(this) {
+            packages.put(packageName, Entry(pi))
+            // package might have declared or used a shared library
+            sharedLibraries.clear()
+            ++changeCount
+        }
+        return pi
+    }
+
+    fun getSharedLibraries(flags: Long = 0L): List<SharedLibraryInfo> {
+        val now = SystemClock.elapsedRealtime()
+
+        sharedLibraries.get(flags)?.let {
+            if (flags == 0L || now - it.timestamp < NON_DEFAULT_FLAGS_SNAPSHOT_MAX_AGE_MS) {
+                return it.list
+            }
+        }
+
+        val prevChangeCount = synchronized(this) { changeCount }
+        val list = pkgManager.getSharedLibraries(flags)
+        synchronized(this) {
+            // don't cache the snapshot if it might have been taken before the latest package change
+            if (changeCount == prevChangeCount) {
+                sharedLibraries.put(flags, SharedLibrariesSnapshot(list, now))
+            }
+        }
+        return list
+    }
+}
@@ -5,25 +5,30 @@ import android.system.Os
 import android.system.OsConstants
 import android.system.StructStat
 import androidx.core.content.edit
+import app.grapheneos.apps.core.InstallTask.Companion.APK_STORE_REFS_FILE_NAME
+import app.grapheneos.apps.core.InstallTask.Companion.apkStoreDir
 import app.grapheneos.apps.core.InstallTask.Companion.packageCacheDir
 import app.grapheneos.apps.util.InternalSettings
-import app.grapheneos.apps.util.getPackageInfoOrNull
-import app.grapheneos.apps.util.getSharedLibraries
 import app.grapheneos.apps.util.megabytes
 import java.io.File
+import java.io.IOException
 import kotlin.time.Duration.Companion.days
 import kotlin.time.Duration.Companion.milliseconds
 
+// APKs are held in the APK store, which is shared by all package versions. Each package version
+// directory refers to the APK store files that it uses (see InstallTask.writeApkStoreRefs()), APK store
+// file is deleted when the last package version that refers to it is deleted. Size of APK store
+// file is accounted for only once, even if it's referred to by several package versions
 fun prunePackageCache() {
     maybeDeleteV1Files()
 
     val cacheDir = packageCacheDir
 
-    val sharedLibraries = pkgManager.getSharedLibraries()
+    val sharedLibraries = InstalledPackageIndex.getSharedLibraries()
 
     packageCacheDir.listFiles()?.forEach { pkgDir ->
         val pkgName = pkgDir.name
-        var curVersion = pkgManager.getPackageInfoOrNull(pkgName)?.longVersionCode
+        var curVersion = InstalledPackageIndex.getPackageInfo(pkgName)?.longVersionCode
         if (curVersion == null) {
             curVersion = sharedLibraries.filter {
                 it.declaringPackage.packageName == pkgName
@@ -44,39 +49,71 @@ fun prunePackageCache() {
     }
 
     val dirs: MutableList<PackageCache> = collectPackageCacheStats(cacheDir)
+    val apkStore: Map<String, ApkStoreEntry> = collectApkStoreStats()
+
+    val refCounts = HashMap<String, Int>()
+    dirs.forEach { dir ->
+        dir.apkStoreRefs.forEach { refCounts[it] = (refCounts[it] ?: 0) + 1 }
+    }
 
     dirs.sortBy { it.mtimeSeconds }
 
     val minMtimeSeconds = (System.currentTimeMillis().milliseconds - 2.days).inWholeSeconds
-    // note that the OS may prune the cache itself at any time, to any size
-    val maxCacheSize = 500.megabytes
-
-    var totalSize = dirs.sumOf { it.sumSize }
+    val maxCacheSize = MAX_PACKAGE_CACHE_SIZE
 
-    dirs.takeWhile {
-        val mtimeSeconds = it.mtimeSeconds
-        val size = it.sumSize
+    var totalSize = dirs.sumOf { it.sumSize } +
+            apkStore.entries.sumOf { if (refCounts.containsKey(it.key)) it.value.sumSize else 0L }
 
-        if (mtimeSeconds < minMtimeSeconds) {
-            totalSize -= size
-        } else {
-            if (totalSize < maxCacheSize) {
-                return@takeWhile false
+    for (dir in dirs) {
+        if (dir.mtimeSeconds >= minMtimeSeconds && totalSize < maxCacheSize) {
+            break
+        }
+        dir.file.deleteRecursively()
+        totalSize -= dir.sumSize
+
+        dir.apkStoreRefs.forEach { ref ->
+            val refCount = refCounts[ref]!! - 1
+            if (refCount == 0) {
+                refCounts.remove(ref)
+                totalSize -= apkStore[ref]?.sumSize ?: 0L
+            } else {
+                refCounts[ref] = refCount
             }
-            totalSize -= size
         }
-        true
-    }.forEach {
-        it.file.deleteRecursively()
+    }
+
+    apkStore.forEach { (key, entry) ->
+        if (!refCounts.containsKey(key)) {
+            entry.files.forEach { it.delete() }
+        }
     }
 
     removeEmptyDirs(cacheDir)
 }
 
+// note that the OS may prune the cache itself at any time, to any size
+val MAX_PACKAGE_CACHE_SIZE = 500.megabytes
+
+// Returns the size of the package cache as it's accounted for by prunePackageCache()
+fun packageCacheSize(): Long {
+    val dirs = collectPackageCacheStats(packageCacheDir)
+    val refs = HashSet<String>()
+    dirs.forEach { refs.addAll(it.apkStoreRefs) }
+    val apkStore = collectApkStoreStats()
+    return dirs.sumOf { it.sumSize } + refs.sumOf { apkStore[it]?.sumSize ?: 0L }
+}
+
 private class PackageCache(
     val file: File,
     val sumSize: Long,
     val mtimeSeconds: Long,
+    val apkStoreRefs: Set<String>,
+)
+
+// APK store file and its tmp, part and state files
+private class ApkStoreEntry(
+    val files: MutableList<File> = mutableListOf(),
+    var sumSize: Long = 0L,
 )
 
 private fun collectPackageCacheStats(dir: File): MutableList<PackageCache> {
@@ -95,13 +132,38 @@ private fun collectPackageCacheStats(dir: File): MutableList<PackageCache> {
                 }
             }
 
-            list.add(PackageCache(pkgVersionDir, sumSize, maxMtimeSec))
+            val apkStoreRefs = try {
+                File(pkgVersionDir, APK_STORE_REFS_FILE_NAME).readLines().toSet()
+            } catch (e: IOException) {
+                emptySet()
+            }
+
+            list.add(PackageCache(pkgVersionDir, sumSize, maxMtimeSec, apkStoreRefs))
         }
     }
 
     return list
 }
 
+private fun collectApkStoreStats(): Map<String, ApkStoreEntry> {
+    val map = HashMap<String, ApkStoreEntry>()
+
+    apkStoreDir.listFiles()?.forEach { file ->
+        val stat = statOrNull(file.path)
+        if (stat == null || !OsConstants.S_ISREG(stat.st_mode)) {
+            return@forEach
+        }
+        // "<sha256>-<size>.gz" + optional ".tmp", ".part", ".part.state" etc, see Apk.storeName
+        val name = file.name
+        val key = name.substringBefore('.') + "." + name.substringAfter('.').substringBefore('.')
+        val entry = map.getOrPut(key) { ApkStoreEntry() }
+        entry.files.add(file)
+        entry.sumSize += stat.st_size
+    }
+
+    return map
+}
+
 private fun removeEmptyDirs(dir: File) {
     dir.walkBottomUp().onEnter { subDir ->
         subDir.delete()
@@ -26,6 +26,17 @@ class PackageState(val pkgName: String, val id: Long) {
         cachedDownloadSize = null
     }
 
+    // Used when repo is updated. Data derived from the package is kept if the new package is
+    // equivalent to the current one. Returns whether the package has changed
+    fun replaceRPackage(v: RPackage): Boolean {
+        val changed = !rPackage.isEquivalentTo(v)
+        rPackage = v
+        if (changed) {
+            cachedDownloadSize = null
+        }
+        return changed
+    }
+
     fun updateRPackage() {
         val pkg = rPackage.common.getPackage(preferredReleaseChannel())
         if (pkg !== rPackage) {
@@ -112,6 +123,10 @@ class PackageState(val pkgName: String, val id: Long) {
                     }
                 }
                 check(taskState == InstallTask.STATE_DOWNLOADING)
+                val queuePosition = DownloadScheduler.queuePosition(installTask)
+                if (queuePosition != 0) {
+                    return ctx.getString(R.string.pkg_status_queued_download, queuePosition)
+                }
                 val progress = installTask.downloadProgress.get()
                 val total = installTask.downloadTotal
                 if (progress == total) {
@@ -131,13 +146,7 @@ class PackageState(val pkgName: String, val id: Long) {
         }
     }
 
-    // Bulk updates are performed by the auto-update job and by the "Update all" button on Updates screen
-    fun isEligibleForBulkUpdate(): Boolean {
-        val pi = osPackageInfo
-        return pi != null && (canUpdateDisabledPackages || pi.applicationInfo?.enabled == true)
-                && pi.longVersionCode < rPackage.versionCode
-                && !rPackage.common.optOutOfBulkUpdates
-    }
+    fun isEligibleForBulkUpdate() = isPackageEligibleForBulkUpdate(rPackage, osPackageInfo)
 
     fun status(): Status {
         if (isInstalling()) {
@@ -7,7 +7,6 @@ import android.content.IntentFilter
 import android.os.Build
 import android.os.SystemClock
 import android.util.ArrayMap
-import android.util.ArraySet
 import android.util.Log
 import androidx.core.content.edit
 import androidx.core.os.postDelayed
@@ -20,14 +19,16 @@ import androidx.lifecycle.LifecycleOwner
 import app.grapheneos.apps.core.appContext
 import app.grapheneos.apps.core.appResources
 import app.grapheneos.apps.core.mainHandler
-import app.grapheneos.apps.core.pkgManager
+import app.grapheneos.apps.core.ApkPrefetch
 import app.grapheneos.apps.core.InstallTask
+import app.grapheneos.apps.core.InstalledPackageIndex
 import app.grapheneos.apps.core.InstallerSessions
 import app.grapheneos.apps.core.InstallerSessions.installerSessionMap
+import app.grapheneos.apps.core.PackageSnapshot
+import app.grapheneos.apps.core.PackageStatesSnapshot
 import app.grapheneos.apps.util.ActivityUtils
 import app.grapheneos.apps.util.checkMainThread
 import app.grapheneos.apps.util.forEachEntry
-import app.grapheneos.apps.util.getPackageInfoOrNull
 import app.grapheneos.apps.util.getSharedPreferences
 import app.grapheneos.apps.util.intent
 import app.grapheneos.apps.util.invokeOnCompletionOnMainThread
@@ -41,6 +42,8 @@ import app.grapheneos.apps.core.PackageState
 import app.grapheneos.apps.core.RPackageContainer
 import app.grapheneos.apps.core.ReleaseChannel
 import app.grapheneos.apps.core.Repo
+import app.grapheneos.apps.core.RepoDiff
+import app.grapheneos.apps.core.isEquivalentTo
 import app.grapheneos.apps.core.RepoUpdateError
 import app.grapheneos.apps.core.fetchRepo
 import app.grapheneos.apps.core.getCachedRepo
@@ -63,6 +66,9 @@ object PackageStates : LifecycleEventObserver {
     val map = HashMap<String, PackageState>()
 
     var repo: Repo = getCachedRepo(); private set
+    // see PackageStatesSnapshot
+    @Volatile
+    var snapshot = PackageStatesSnapshot(repo, emptyMap()); private set
     var repoUpdateJob: Deferred<RepoUpdateError?>? = null; private set
     private var lastSuccessfulRepoUpdateCheck = -1L
     private var lastRepoUpdateResult: RepoUpdateError? = null
@@ -106,9 +112,12 @@ object PackageStates : LifecycleEventObserver {
 
                 val packageName = intent.data!!.schemeSpecificPart
 
+                val pkgInfo = InstalledPackageIndex.onPackageChanged(packageName)
+
                 map[packageName]?.let {
-                    it.osPackageInfo = pkgManager.getPackageInfoOrNull(packageName)
+                    it.osPackageInfo = pkgInfo
                     it.notifyListeners()
+                    publishSnapshot()
                 }
 
                 updateNumberOfOutdatedPackages()
@@ -133,50 +142,149 @@ object PackageStates : LifecycleEventObserver {
     }
 
     fun updateRepo(repo: Repo) {
-        checkMainThread()
+        applyRepoUpdate(prepareRepoUpdate(repo))
+    }
 
+    class PreparedRepoUpdate(val base: PackageStatesSnapshot, val snapshot: PackageStatesSnapshot,
+                             val diff: RepoDiff)
+
+    // Selects package variants, looks up OS package info and diffs the result against the current
+    // snapshot. PackageState objects aren't accessed, which allows calling this off the main thread
+    private fun prepareRepoUpdate(repo: Repo): PreparedRepoUpdate {
+        val base = snapshot
+
+        // new repo isn't published yet, its groups aren't accessed concurrently
         repo.groups.values.forEach {
             it.releaseChannelOverride = maybeGetReleaseChannelOverride(it.name)
         }
 
-//        val start = SystemClock.uptimeMillis()
-
-        val leftoverPackages = ArraySet(map.keys)
+        val diff = RepoDiff()
+        val packages = HashMap<String, PackageSnapshot>(repo.packages.size * 2)
 
         repo.packages.forEach { entry ->
             val pkgName = entry.key
-            leftoverPackages.remove(pkgName)
+            val container: RPackageContainer = entry.value
+
+            // same as PackageState.preferredReleaseChannel()
+            val group = container.group
+            val channelOverride = if (group != null) {
+                group.releaseChannelOverride
+            } else {
+                maybeGetReleaseChannelOverride(pkgName)
+            }
+            val pkg = container.getPackage(channelOverride ?: defaultReleaseChannel)
+
+            val prev = base.packages[pkgName]
+            val pkgInfo = if (pkg.common.isSharedLibrary) {
+                prev?.osPackageInfo
+            } else {
+                // osPackageInfo is kept up-to-date by the package change receiver, but the package
+                // might have stopped being a shared library.
+                // PackageInfo is highly likely to be cached at this point, cache is populated
+                // during repo parsing.
+                // pkgManager.getInstalledPackages() is not cached and is much slower in
+                // almost all cases
+                InstalledPackageIndex.getPackageInfo(pkgName)
+            }
+            packages[pkgName] = PackageSnapshot(pkg, pkgInfo)
+
+            if (prev == null) {
+                diff.added.add(pkgName)
+            } else if (!prev.rPackage.isEquivalentTo(pkg) || prev.osPackageInfo !== pkgInfo) {
+                diff.updated.add(pkgName)
+            }
+        }
 
-            map.getOrPut(pkgName) {
+        base.packages.keys.forEach {
+            if (!repo.packages.containsKey(it)) {
+                diff.removed.add(it)
+            }
+        }
+
+        return PreparedRepoUpdate(base, PackageStatesSnapshot(repo, packages), diff)
+    }
+
+    // Applies the prepared update to PackageStates and publishes its snapshot
+    private fun applyRepoUpdate(prepared: PreparedRepoUpdate) {
+        checkMainThread()
+
+        if (prepared.base !== snapshot) {
+            // PackageStates were changed while the update was being prepared
+            applyRepoUpdate(prepareRepoUpdate(prepared.snapshot.repo))
+            return
+        }
+
+        val repo = prepared.snapshot.repo
+        val diff = prepared.diff
+
+//        val start = SystemClock.uptimeMillis()
+
+        // Only PackageStates that were changed by the repo update are updated and dispatched
+        prepared.snapshot.packages.forEach { entry ->
+            val pkgName = entry.key
+            val pkgSnapshot = entry.value
+            val prevState = map[pkgName]
+
+            if (prevState == null) {
                 PackageState(pkgName, ++prevPackageStateId).apply {
                     releaseChannelOverride = maybeGetReleaseChannelOverride(pkgName)
+                    setRPackage(pkgSnapshot.rPackage)
+                    osPackageInfo = pkgSnapshot.osPackageInfo
+                    map[pkgName] = this
                 }
-            }.apply {
-                val container: RPackageContainer = entry.value
-                val pkg = container.getPackage(preferredReleaseChannel(container))
-                setRPackage(pkg)
-                if (!pkg.common.isSharedLibrary) {
-                    // PackageInfo is highly likely to be cached at this point, cache is populated
-                    // during repo parsing.
-                    // pkgManager.getInstalledPackages() is not cached and is much slower in
-                    // almost all cases
-                    osPackageInfo = pkgManager.getPackageInfoOrNull(pkgName)
-                }
+            } else {
+                prevState.replaceRPackage(pkgSnapshot.rPackage)
+                prevState.osPackageInfo = pkgSnapshot.osPackageInfo
             }
         }
 
-        leftoverPackages.forEach {
+        diff.removed.forEach {
             // this package is missing from the new repo, drop its PackageState
-            Log.d(TAG, "leftover package: $it")
             map.remove(it)
         }
 
 //        Log.d("updateRepo", "took ${SystemClock.uptimeMillis() - start} ms")
 
         this.repo = repo
+        snapshot = prepared.snapshot
+
+        Log.d(TAG, "updateRepo: $diff")
 
-        dispatchAllStatesChanged()
+        if (diff.hasStructuralChanges()) {
+            // lists of packages need to be rebuilt
+            dispatchAllStatesChanged()
+        } else {
+            diff.updated.forEach {
+                dispatchStateChanged(map[it]!!)
+            }
+        }
         updateNumberOfOutdatedPackages()
+
+        if (BuildConfig.DEBUG) {
+            logRepoHeapReport(repo)
+        }
+    }
+
+    // Should be called after each change of PackageState.rPackage or PackageState.osPackageInfo
+    // that is made outside of repo updates
+    private fun publishSnapshot() {
+        checkMainThread()
+
+        val packages = HashMap<String, PackageSnapshot>(map.size * 2)
+        map.values.forEach {
+            packages[it.pkgName] = PackageSnapshot(it.rPackage, it.osPackageInfo)
+        }
+        snapshot = PackageStatesSnapshot(repo, packages)
+    }
+
+    private fun logRepoHeapReport(repo: Repo) {
+        val report = repo.debugHeapReport()
+        CoroutineScope(Dispatchers.Default).launch {
+            val runtime = Runtime.getRuntime()
+            runtime.gc()
+            val usedKb = (runtime.totalMemory() - runtime.freeMemory()) / 1024
+            Log.d(TAG, "repo: $report; Java heap in use after GC: $usedKb KiB")
+        }
     }
 
     fun requestRepoUpdateNoSuspend(force: Boolean = false) {
@@ -222,6 +330,15 @@ object PackageStates : LifecycleEventObserver {
                 null
             }
 
+            // variant selection and diffing are done off the main thread
+            val preparedUpdate = if (repo != null && repo !== currentRepo) {
+                // lookups of installed packages in prepareRepoUpdate() are sequential
+                InstalledPackageIndex.prefetch(repo.packages.keys)
+                prepareRepoUpdate(repo)
+            } else {
+                null
+            }
+
             val job = this.coroutineContext[Job]
 
             withContext(Dispatchers.Main) {
@@ -231,8 +348,8 @@ object PackageStates : LifecycleEventObserver {
                 lastRepoUpdateResult = result
                 if (repo != null) {
                     lastSuccessfulRepoUpdateCheck = SystemClock.elapsedRealtime()
-                    if (repo !== currentRepo) {
-                        updateRepo(repo)
+                    if (preparedUpdate != null) {
+                        applyRepoUpdate(preparedUpdate)
                     }
                 }
                 dispatchRepoUpdateResult(result)
@@ -345,7 +462,7 @@ object PackageStates : LifecycleEventObserver {
     fun scheduleCachePruning() {
         checkMainThread()
 
-        if (installTasks.isEmpty() && installerSessionMap.isEmpty()) {
+        if (installTasks.isEmpty() && installerSessionMap.isEmpty() && !ApkPrefetch.isActive()) {
             if (packageCachePruningJob == null) {
                 CoroutineScope(Dispatchers.IO).let { scope ->
                     val job = scope.async {
@@ -380,6 +497,7 @@ object PackageStates : LifecycleEventObserver {
                 map.values.forEach {
                     it.updateRPackage()
                 }
+                publishSnapshot()
 
                 dispatchAllStatesChanged()
             }
@@ -387,6 +505,8 @@ object PackageStates : LifecycleEventObserver {
     }
 
     // TODO: surface in UI
+    // read by prepareRepoUpdate() off the main thread
+    @Volatile
     var defaultReleaseChannel: ReleaseChannel = ReleaseChannel.valueOf(
         prefs.getString(defaultReleaseChannelPrefsKey, ReleaseChannel.stable.name)!!
     ); private set
@@ -422,6 +542,7 @@ object PackageStates : LifecycleEventObserver {
             state.notifyListeners()
         }
 
+        publishSnapshot()
         updateNumberOfOutdatedPackages()
     }
 
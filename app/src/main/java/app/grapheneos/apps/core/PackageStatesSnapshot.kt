@@ -0,0 +1,22 @@
+package app.grapheneos.apps.core
+
+import android.content.pm.PackageInfo
+
+// Immutable view of PackageStates that can be read from any thread. A new snapshot is published
+// by PackageStates with a single volatile write after each change of the repo, of selected
+// package variants or of OS package info, which means that readers always see a consistent state.
+// Mutable PackageState objects remain accessible only from the main thread
+class PackageStatesSnapshot(val repo: Repo, val packages: Map<String, PackageSnapshot>) {
+    fun hasPackagesEligibleForBulkUpdate() = packages.values.any { it.isEligibleForBulkUpdate() }
+}
+
+class PackageSnapshot(val rPackage: RPackage, val osPackageInfo: PackageInfo?) {
+    fun isEligibleForBulkUpdate() = isPackageEligibleForBulkUpdate(rPackage, osPackageInfo)
+}
+
+// Bulk updates are performed by the auto-update job and by the "Update all" button on Updates screen
+fun isPackageEligibleForBulkUpdate(rPackage: RPackage, pi: PackageInfo?): Boolean {
+    return pi != null && (canUpdateDisabledPackages || pi.applicationInfo?.enabled == true)
+            && pi.longVersionCode < rPackage.versionCode
+            && !rPackage.common.optOutOfBulkUpdates
+}
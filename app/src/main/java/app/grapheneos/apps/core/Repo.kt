@@ -1,7 +1,7 @@
 package app.grapheneos.apps.core
 
 import android.content.pm.ApplicationInfo
-import android.content.pm.FeatureInfo
+import android.content.pm.PackageInfo
 import android.content.res.Configuration
 import android.os.Build
 import android.os.LocaleList
@@ -20,16 +20,7 @@ import androidx.core.util.size
 import app.grapheneos.apps.BuildConfig
 import app.grapheneos.apps.PackageStates
 import app.grapheneos.apps.R
-import app.grapheneos.apps.util.asStringList
 import app.grapheneos.apps.util.checkMainThread
-import app.grapheneos.apps.util.getPackageInfoOrNull
-import app.grapheneos.apps.util.isEven
-import app.grapheneos.apps.util.maybeGetSystemFeatureInfo
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
-import org.json.JSONArray
-import org.json.JSONObject
 import java.io.ByteArrayInputStream
 import java.security.cert.CertificateFactory
 import java.security.cert.X509Certificate
@@ -37,63 +28,58 @@ import java.util.Locale
 
 const val REPO_BASE_URL = BuildConfig.REPO_BASE_URL
 
-class Repo(json: JSONObject, val eTag: String, val isDummy: Boolean = false) {
-    val timestamp = json.getLong("time")
-
+class Repo(
+    val timestamp: Long,
+    val eTag: String,
+    // fs-verity certificate id -> base64-encoded certificate
+    val fsVerityCerts: Map<String, String>?,
+    val isDummy: Boolean = false,
+) {
     val groups = mutableMapOf<String, RPackageGroup>()
-    private val renamedPackages = ArrayMap<String, String>()
+    // manifest package name -> package name, for packages that were renamed via original-package system
+    val renamedPackages = ArrayMap<String, String>()
 
     fun translateManifestPackageName(name: String) = renamedPackages[name] ?: name
 
-    val packages: HashMap<String, RPackageContainer> = run {
-        val packagesJson = json.getJSONObject("packages")
-        val map = HashMap<String, RPackageContainer>(packagesJson.length())
-
-        // Collect packages renamed via original-package system. Applicable only to preinstalled apps.
-        for (manifestPackageName in packagesJson.keys()) {
-            val originalPackage = packagesJson.getJSONObject(manifestPackageName)
-                .opt("originalPackage") as String?
-
-            if (originalPackage != null) {
-                pkgManager.getPackageInfoOrNull(originalPackage)?.let {
-                    val ai = it.applicationInfo
-                    if (ai != null && ai.flags and ApplicationInfo.FLAG_SYSTEM != 0) {
-                        renamedPackages.put(manifestPackageName, originalPackage)
-                    }
-                }
-            } else {
-                // PackageInfos are cached by the OS. Populating this cache in advance speeds up
-                // subsequent requests
-                CoroutineScope(Dispatchers.Default).launch {
-                    pkgManager.getPackageInfoOrNull(manifestPackageName)
+    val packages = HashMap<String, RPackageContainer>()
+
+    // SHA-256 digests of APKs and signing certificates
+    val hashes = HashArena()
+
+    // used in debug builds for tracking memory usage of the repo, see PackageStates.updateRepo()
+    fun debugHeapReport(): String {
+        var numVariants = 0
+        var numApkLists = 0
+        var numApks = 0
+        packages.values.forEach { container ->
+            numVariants += container.variants.size
+            container.variants.forEach {
+                if (it.areApksMaterialized()) {
+                    ++numApkLists
+                    numApks += it.apks.size
                 }
             }
         }
+        return "${packages.size} packages, $numVariants variants, " +
+                "$numApkLists materialized APK lists ($numApks APKs), " +
+                "${hashes.size} hashes in ${hashes.capacityBytes}-byte arena"
+    }
 
-        for (manifestPackageName in packagesJson.keys()) {
-            val packageContainerJson = packagesJson.getJSONObject(manifestPackageName)
-
-            if (!checkStaticDeps(packageContainerJson, manifestPackageName, this)) {
-                continue
-            }
-
-            val packageName = translateManifestPackageName(manifestPackageName)
-
-            if (Build.VERSION.SDK_INT == 34 && isPrivilegedInstaller
-                && packageName != manifestPackageName && shouldSkipRenamedPackages()
-            ) {
-                continue
-            }
+    // Packages are constructed independently of each other (and possibly in parallel), and are
+    // added to the repo and to their groups afterwards, in a deterministic order
+    fun addPackage(container: RPackageContainer) {
+        check(container.repo === this)
+        packages.put(container.packageName, container)
 
-            val res = RPackageContainer(this@Repo, packageName, manifestPackageName, packageContainerJson)
-            if (res.variants.isNotEmpty()) {
-                map.put(packageName, res)
-            }
+        container.groupName?.let { name ->
+            groups.getOrPut(name) { RPackageGroup(name) }.packages.add(container)
         }
-
-        map
     }
 
+    // State of installed packages that were looked up during repo filtering (static deps and
+    // original-package renames). Filtering result remains valid only while their state is unchanged
+    val filterInputs = ArrayMap<String, FilterInput>()
+
     val fsVerityCertificateId: Int? = run {
         if (Build.VERSION.SDK_INT >= 35) {
             // fs-verity certificates are not used by the OS since SDK 35
@@ -107,13 +93,12 @@ class Repo(json: JSONObject, val eTag: String, val isDummy: Boolean = false) {
             }
         }
 
-        val certs = json.optJSONObject("fsVerityCerts") ?: return@run null
+        val certs = fsVerityCerts ?: return@run null
         val fim: FileIntegrityManager = appContext.getSystemService() ?: return@run null
 
         val certFactory = CertificateFactory.getInstance("X.509")
 
-        for (id in certs.keys()) {
-            val certBase64 = certs.getString(id)
+        for ((id, certBase64) in certs) {
             val certBytes = Base64.decode(certBase64, Base64.DEFAULT)
 
             val cert = certFactory.generateCertificate(ByteArrayInputStream(certBytes)) as X509Certificate
@@ -127,6 +112,32 @@ class Repo(json: JSONObject, val eTag: String, val isDummy: Boolean = false) {
     }
 }
 
+class FilterInput(val versionCode: Long, val flags: Int) {
+    fun isSameAs(other: FilterInput) = versionCode == other.versionCode && flags == other.flags
+
+    companion object {
+        const val FLAG_INSTALLED = 1
+        const val FLAG_ENABLED = 1 shl 1
+        const val FLAG_SYSTEM = 1 shl 2
+
+        fun of(pi: PackageInfo?): FilterInput {
+            if (pi == null) {
+                return FilterInput(0L, 0)
+            }
+            var flags = FLAG_INSTALLED
+            pi.applicationInfo?.let {
+                if (it.enabled) {
+                    flags = flags or FLAG_ENABLED
+                }
+                if (it.flags and ApplicationInfo.FLAG_SYSTEM != 0) {
+                    flags = flags or FLAG_SYSTEM
+                }
+            }
+            return FilterInput(pi.longVersionCode, flags)
+        }
+    }
+}
+
 // ReleaseChannel enum entries are expected to be ordered from least stable to most stable by the
 // package variant selection code.
 enum class ReleaseChannel(@param:StringRes val uiName: Int) {
@@ -154,205 +165,91 @@ class RPackageGroup(val name: String) {
 
 // Contains properties that are common to variants of the package, and the list of variants.
 // Some of the common properties can be overridden in its variants
-class RPackageContainer(val repo: Repo, val packageName: String,
-                        // different from packageName if renamed via the original-package system
-                        val manifestPackageName: String,
-                        json: JSONObject)
-{
-    val description = json.opt("description") as String?
-    val source: PackageSource = (json.opt("source") as String?).let {
-        if (it != null) {
-            PackageSource.valueOf(it)
-        } else {
-            PackageSource.GrapheneOS_build
-        }
-    }
-
+class RPackageContainer(
+    val repo: Repo,
+    val packageName: String,
+    // different from packageName if renamed via the original-package system
+    val manifestPackageName: String,
+    val description: String?,
+    val source: PackageSource,
     // whether this is a resource-only package. enforced during package installation
-    val noCode = json.optBoolean("noCode", false)
+    val noCode: Boolean,
     // whether to show this package on the main screen
-    val isTopLevel = json.optBoolean("isTopLevel", true)
-    val showAutoUpdateNotifications = json.optBoolean("showAutoUpdateNotifications", !noCode)
-
-    val isSharedLibrary = json.optBoolean("isSharedLibrary", false)
-
+    val isTopLevel: Boolean,
+    val showAutoUpdateNotifications: Boolean,
+    val isSharedLibrary: Boolean,
     // if this is a noCode package, defines which packages are allowed to trigger its immediate update
-    val packagesAllowedToTriggerUpdate: List<String> =
-        json.optJSONArray("packagesAllowedToTriggerUpdate")?.asStringList()?.map {
-            repo.translateManifestPackageName(it)
-        } ?: emptyList()
-
-    // SHA-256 digests of valid signing certificates
-    val validCertDigests: Array<ByteArray> =
-            json.getJSONArray("signatures" /* historical name */).asStringList().map {
-        val arr = hexStringToByteArray(it)
-        check(arr.size == (256 / 8))
-        arr
-    }.toTypedArray()
-
-    val iconUrl: String? = run {
-        val iconType = json.opt("iconType") as String?
-        if (iconType != null) {
-            "$REPO_BASE_URL/packages/$manifestPackageName/icon.$iconType"
-        } else {
-            null
-        }
-    }
-
+    val packagesAllowedToTriggerUpdate: List<String>,
+    // indices of SHA-256 digests of valid signing certificates in repo.hashes
+    val validCertDigestIndices: IntArray,
+    val iconUrl: String?,
+    val groupName: String?,
+    val dependencies: Array<Dependency>?,
+    val hasFsvSigSignatures: Boolean,
+    val requestUpdateOwnership: Boolean,
+    // Opt out of bulk updates that are performed by the auto-update job and by the "Update all"
+    // button. This option is intended for packages that are able to self-update, such as app stores.
+    val optOutOfBulkUpdates: Boolean,
+    // called with this container to create the list of its variants, sorted by stability in
+    // ascending order
+    makeVariants: (RPackageContainer) -> List<RPackage>,
+) {
     // Used for setting release channel for packages that are closely linked together.
     // This allows to significantly simplify the dependency resolution process (otherwise release
     // channel could be changed for each of them independently)
-    val group: RPackageGroup? = run {
-        val groupName = json.opt("group") as String? ?: return@run null
-        val group = repo.groups.getOrPut(groupName) {
-            RPackageGroup(groupName)
-        }
-        group.packages.add(this)
-        group
-    }
-
-    val dependencies: Array<Dependency>? = parseDependencies(json, repo)
-
-    val variants: List<RPackage> = json.getJSONObject("variants").let { variantJson ->
-        val pkgs = arrayOfNulls<RPackage>(ReleaseChannel.entries.size)
-
-        for (versionString in variantJson.keys()) {
-            val jo = variantJson.getJSONObject(versionString)
-
-            val minSdk = jo.optInt("minSdk", 0)
-            if (minSdk > Build.VERSION.SDK_INT) {
-                continue
-            }
-
-            val maxSdk = jo.optInt("maxSdk", Int.MAX_VALUE)
-            if (maxSdk < Build.VERSION.SDK_INT) {
-                continue
-            }
-
-            val abis = jo.optJSONArray("abis")?.asStringList()
-            if (abis != null) {
-                // intentionally don't support secondary ABIs
-                val abi = Build.SUPPORTED_ABIS.first()
-                if (abis.none { it == abi }) {
-                    continue
-                }
-            }
-
-            if (!checkStaticDeps(jo, manifestPackageName, repo)) {
-                continue
-            }
-
-            val pkg = RPackage(this, versionString.toLong(), abis?.toTypedArray(), repo, jo)
-
-            val arrayIndex = pkg.releaseChannel.ordinal
+    val group: RPackageGroup?
+        get() = groupName?.let { repo.groups[it] }
 
-            val prevPkg = pkgs[arrayIndex]
+    val variants: List<RPackage> = makeVariants(this)
 
-            // make sure there's at most one package in each release channel
-            if (prevPkg != null) {
-                if (prevPkg.versionCode > pkg.versionCode) {
-                    continue
-                }
-                if (prevPkg.abis != null && pkg.abis != null) {
-                    val prevNumAbiMismatches =
-                        prevPkg.abis.count { !Build.SUPPORTED_ABIS.contains(it) } +
-                                Build.SUPPORTED_ABIS.count { !prevPkg.abis.contains(it) }
-
-                    val numAbiMismatches = pkg.abis.count { !Build.SUPPORTED_ABIS.contains(it) } +
-                            Build.SUPPORTED_ABIS.count { !pkg.abis.contains(it) }
-
-                    if (prevNumAbiMismatches < numAbiMismatches) {
-                        continue
-                    }
-                }
-            }
+    val validCertDigests: Array<ByteArray>
+        get() = Array(validCertDigestIndices.size) { repo.hashes.get(validCertDigestIndices[it]) }
 
-            pkgs[arrayIndex] = pkg
+    // compares digests in place, without copying them out of repo.hashes
+    fun hasSameValidCertDigestsAs(other: RPackageContainer): Boolean {
+        val indices = validCertDigestIndices
+        val otherIndices = other.validCertDigestIndices
+        return indices.size == otherIndices.size && indices.indices.all {
+            repo.hashes.matches(indices[it], other.repo.hashes, otherIndices[it])
         }
-
-        return@let pkgs.filterNotNull()
     }
 
-    val hasFsvSigSignatures = if (Build.VERSION.SDK_INT >= 35) {
-        // fsv_sig are not used by the OS since SDK 35, v4 APK signatures are used instead
-        false
-    } else {
-        json.optBoolean("hasFsVeritySignatures", false)
-    }
-
-    val requestUpdateOwnership = json.optBoolean("requestUpdateOwnership", true)
-
-    // Opt out of bulk updates that are performed by the auto-update job and by the "Update all"
-    // button. This option is intended for packages that are able to self-update, such as app stores.
-    val optOutOfBulkUpdates = json.optBoolean("optOutOfBulkUpdates", false)
-
     fun getPackage(channel: ReleaseChannel): RPackage {
         return findRPackage(variants, channel)
     }
 }
 
-private val emptyDependencyArray = emptyArray<Dependency>()
-
-private fun parseDependencies(json: JSONObject, repo: Repo): Array<Dependency>? {
-    val arr: JSONArray? = json.optJSONArray("deps2") ?: json.optJSONArray("deps")
-    return if (arr != null) {
-        arr.asStringList().map { Dependency(it, repo) }.toTypedArray()
-    } else {
-        null
-    }
-}
-
 // "Repo package"
-class RPackage(val common: RPackageContainer, val versionCode: Long, val abis: Array<String>?, repo: Repo, json: JSONObject) {
+class RPackage(
+    val common: RPackageContainer,
+    val versionCode: Long,
+    val abis: Array<String>?,
+    val label: String,
+    val versionName: String,
+    val description: String?,
+    val releaseNotes: String?,
+    val dependencies: Array<Dependency>,
+    val releaseChannel: ReleaseChannel,
+    val hasV4Signatures: Boolean,
+    // called with this package to create its list of APKs, see makeApkList()
+    makeApks: (RPackage) -> List<Apk>,
+) {
     val packageName: String = common.packageName
     val manifestPackageName: String
         get() = common.manifestPackageName
     val source: PackageSource
         get() = common.source
 
-    val label = json.getString("label")
-    val versionName = json.opt("versionName") as String? ?: versionCode.toString()
-    val description = json.opt("description") as String? ?: common.description
-    val releaseNotes = json.opt("releaseNotes") as String?
-
-    val dependencies: Array<Dependency> = parseDependencies(json, repo) ?: common.dependencies ?: emptyDependencyArray
-
-    val releaseChannel = ReleaseChannel.valueOf(json.optString("channel", ReleaseChannel.stable.name))
+    // APK list is materialized on first access: most packages are only listed during a session,
+    // and their APK names and hashes are never needed. Initializer, which references the repo
+    // bytes that the list is parsed from, is released once the list is materialized
+    private val lazyApks = lazy { makeApks(this) }
+    val apks: List<Apk> by lazyApks
 
-    val apks: List<Apk> = run {
-        val names = json.getJSONArray("apks")
-        val hashes = json.getJSONArray("apkHashes")
-        val sizes = json.getJSONArray("apkSizes")
-        val gzSizes = json.getJSONArray("apkGzSizes")
-
-        val len = names.length()
-        require(hashes.length() == len)
-        require(sizes.length() == len)
-        require(gzSizes.length() == len)
-
-        val list = ArrayList<Apk>(len)
-
-        for (i in 0 until len) {
-            val name = names.getString(i)
-            val sha256 = hexStringToByteArray(hashes.getString(i))
-            require(sha256.size == (256 / 8))
-            val apk = Apk(this, name, sha256, sizes.getLong(i), gzSizes.getLong(i))
-            if (apk.type == Apk.Type.ABI && apk.qualifier != deviceAbi.apkSplitQualifier) {
-                continue
-            }
-            list.add(apk)
-        }
-        list
-    }
+    fun areApksMaterialized() = lazyApks.isInitialized()
 
-    val hasV4Signatures = if (Build.VERSION.SDK_INT >= 35) {
-        // v4 signatures are used by the OS to enable fs-verity for APKs
-        json.optBoolean("hasV4Signatures", false)
-    } else {
-        // v4 signatures are supported since SDK 30, but before SDK 35 they were used only for
-        // IncFS-backed APK streaming, which isn't used by this installer
-        false
-    }
+    // path of the directory with files of this package version, relative to the repo base URL
+    fun filesPath() = "packages/$manifestPackageName/$versionCode"
 
     fun collectNeededApks(config: Configuration): List<Apk> {
         checkMainThread()
@@ -473,25 +370,93 @@ class RPackage(val common: RPackageContainer, val versionCode: Long, val abis: A
     }
 }
 
+fun makeApkList(pkg: RPackage, names: List<String>,
+                // indices of SHA-256 digests in repo.hashes
+                hashes: IntArray, sizes: LongArray,
+                // per APK: size of its gzip-compressed file and the index of its SHA-256 digest,
+                // or -1 if repo doesn't provide it
+                compressedSizes: LongArray, compressedHashes: IntArray,
+                // per APK: available patches, or null if there are none
+                patches: Array<List<ApkPatch>?>,
+): List<Apk> {
+    val len = names.size
+    require(hashes.size == len)
+    require(sizes.size == len)
+    require(compressedSizes.size == len)
+    require(compressedHashes.size == len)
+    require(patches.size == len)
+
+    val list = ArrayList<Apk>(len)
+
+    for (i in 0 until len) {
+        val apk = Apk(pkg, names[i], hashes[i], sizes[i], compressedSizes[i], compressedHashes[i], patches[i])
+        if (apk.type == Apk.Type.ABI && apk.qualifier != deviceAbi.apkSplitQualifier) {
+            continue
+        }
+        list.add(apk)
+    }
+    return list
+}
+
 class Apk(
     val pkg: RPackage,
     val name: String,
-    val sha256: ByteArray,
+    // index of SHA-256 digest in repo.hashes
+    private val sha256Index: Int,
     val size: Long,
+    // size of the gzip-compressed APK
     val compressedSize: Long,
+    // index of SHA-256 digest of the compressed APK in repo.hashes, -1 if it's unknown
+    private val compressedSha256Index: Int,
+    // patches that produce this APK from the same APK of older versions, see ApkPatch
+    val patches: List<ApkPatch>?,
 ) {
-    var qualifier = ""
+    val sha256: ByteArray
+        get() = pkg.common.repo.hashes.get(sha256Index)
+
+    fun sha256Matches(digest: ByteArray) = pkg.common.repo.hashes.matches(sha256Index, digest)
+
+    val compressedSha256: ByteArray?
+        get() = if (compressedSha256Index >= 0) pkg.common.repo.hashes.get(compressedSha256Index) else null
+
+    // Compressed APK is verified while it's decompressed if its hash is known. Decompressed APK is
+    // always verified against sha256
+    fun hasCompressedSha256() = compressedSha256Index >= 0
+
+    fun compressedSha256Matches(digest: ByteArray) =
+        pkg.common.repo.hashes.matches(compressedSha256Index, digest)
+
+    // name of the file on the repo server
+    val downloadName: String
+        get() = "$name.gz"
+
+    // name of the file in the APK store, see InstallTask.apkStoreDir. Identical APKs of different
+    // versions and release channels share the same file. Stored file is the compressed APK, so it's
+    // keyed by the hash of the compressed APK when it's known. Otherwise, compressed size is
+    // included, since the same APK might be recompressed differently by a later version. Compressed
+    // files that collide anyway fail verification and are deleted, see InstallTask.verifyAndStore()
+    val storeName: String
+        get() {
+            val idx = if (compressedSha256Index >= 0) compressedSha256Index else sha256Index
+            return pkg.common.repo.hashes.getHex(idx) + "-" + compressedSize + ".gz"
+        }
 
-    val type: Type = run {
+    // Qualifiers are interned: the same small set of them (densities, ABIs, languages) is shared
+    // by APKs of all packages
+    val qualifier: String
+    val type: Type
+
+    init {
         val separator = "config."
         val separatorIdx = name.lastIndexOf(separator)
         if (separatorIdx < 0) {
-            Type.UNCONDITIONAL
+            qualifier = ""
+            type = Type.UNCONDITIONAL
         } else {
-            val qualifier = name.substring(separatorIdx + separator.length, name.length - ".apk".length)
+            val qualifier = name.substring(separatorIdx + separator.length, name.length - ".apk".length).intern()
             this.qualifier = qualifier
 
-            if (qualifier.endsWith("dpi")) {
+            type = if (qualifier.endsWith("dpi")) {
                 Type.DENSITY
             } else if (Abi.entries.any { it.apkSplitQualifier == qualifier }) {
                 Type.ABI
@@ -501,7 +466,10 @@ class Apk(
         }
     }
 
-    fun downloadUrl() = "$REPO_BASE_URL/packages/${pkg.manifestPackageName}/${pkg.versionCode}/$name.gz"
+    // paths are relative to the repo base URL, see RepoMirrors
+    fun downloadPath() = "${pkg.filesPath()}/$downloadName"
+
+    fun patchPath(patch: ApkPatch) = "${pkg.filesPath()}/$name.${patch.fromVersionCode}.bsdf2.gz"
 
     enum class Type {
         UNCONDITIONAL,
@@ -518,112 +486,121 @@ class Apk(
     }
 }
 
-private val deviceAbi: Apk.Abi = run {
-    // Intentionally don't support secondary ABIs. They are expected to work worse than the primary ABI.
-    val osName: String = Build.SUPPORTED_ABIS.first()
-    Apk.Abi.entries.first { it.osName == osName }
-}
-
-// Used only for static deps. If it was used for dynamic deps, dependency resolution would become
-// too complex, especially during package updates.
-private class ComplexDependency(string: String) {
-    val lhs: String // left-hand-side
-    val op: String
-    val version: Long
-
-    init {
-        val tokens = string.split(" ")
-        lhs = tokens[0]
-        if (tokens.size == 1) {
-            op = ">="
-            version = 0
-        } else {
-            check(tokens.size == 3)
-            op = tokens[1]
-            version = tokens[2].toLong()
+// Binary patch that produces an APK from the APK with the same name of fromVersionCode, which is
+// usually much smaller than the APK itself when the update is a small code change. Patch is in
+// the BSDF2 format (see applyBsdf2Patch()) and is gzip-compressed, size is of the compressed patch.
+// Patches are advertised in "apkPatches" (see parseApks()) and aren't verified by themselves:
+// APK that is produced by the patch is verified against Apk.sha256
+class ApkPatch(val fromVersionCode: Long, val size: Long)
+
+// Packed storage of SHA-256 digests. Digests are referred to by their index, which avoids
+// allocating a separate ByteArray for each of them.
+// Thread-safe: digests are added during parallel repo parsing and during lazy APK list
+// materialization
+class HashArena {
+    private var arr = ByteArray(SHA256_SIZE * 1024)
+    private var count = 0
+
+    private fun allocate(): Int {
+        if ((count + 1) * SHA256_SIZE > arr.size) {
+            arr = arr.copyOf(arr.size * 2)
         }
+        return count++
     }
 
-    fun check(presentVersion: Long): Boolean {
-        return when (op) {
-            ">=" -> presentVersion >= version
-            "==" -> presentVersion == version
-            "<" -> presentVersion < version
-            else -> throw IllegalStateException(op)
-        }
+    @Synchronized
+    fun add(digest: ByteArray): Int {
+        require(digest.size == SHA256_SIZE)
+        val idx = allocate()
+        System.arraycopy(digest, 0, arr, idx * SHA256_SIZE, SHA256_SIZE)
+        return idx
     }
-}
 
-private fun checkStaticDeps(json: JSONObject, dependentManifestPkgName: String, repo: Repo): Boolean {
-    json.optJSONArray("supportedDevices")?.asStringList()?.let { devices ->
-        if (!devices.contains(Build.DEVICE)) {
-            return false
+    // decodes digest directly into the arena
+    @Synchronized
+    fun addHex(s: String): Int {
+        require(s.length == SHA256_SIZE * 2)
+        val idx = allocate()
+        val base = idx * SHA256_SIZE
+        for (i in 0 until SHA256_SIZE) {
+            val top: Int = Character.digit(s[i * 2].code, 16)
+            val bot: Int = Character.digit(s[i * 2 + 1].code, 16)
+            require(top >= 0 && bot >= 0)
+            arr[base + i] = ((top shl 4) or bot).toByte()
         }
+        return idx
     }
 
-    json.optJSONArray("requiredSystemFeatures")?.asStringList()?.let { features ->
-        if (features.any { !checkSystemFeatureDep(ComplexDependency(it)) }) {
-            return false
-        }
+    @Synchronized
+    fun get(idx: Int): ByteArray {
+        check(idx in 0 until count)
+        val off = idx * SHA256_SIZE
+        return arr.copyOfRange(off, off + SHA256_SIZE)
     }
 
-    json.optJSONArray("staticDeps")?.asStringList()?.let { pkgDeps ->
-        for (depStr in pkgDeps) {
-            val dep = ComplexDependency(depStr)
-            // there's currently no certificate checks for static dependencies, require them to
-            // be a system package instead, unless it's our own package
-            val enforceSystemPkg = dep.lhs != selfPkgName
-            if (!checkPackageDep(dep, dependentManifestPkgName, repo, enforceSystemPkg)) {
-                return false
+    // compares digest at idx with the digest at otherIdx of other arena, without copying them
+    fun matches(idx: Int, other: HashArena, otherIdx: Int): Boolean {
+        // digests are never modified after they are added, and the array that holds them is
+        // replaced, not modified, when it's grown
+        val otherArr = synchronized(other) {
+            check(otherIdx in 0 until other.count)
+            other.arr
+        }
+        val otherOff = otherIdx * SHA256_SIZE
+        synchronized(this) {
+            check(idx in 0 until count)
+            val off = idx * SHA256_SIZE
+            for (i in 0 until SHA256_SIZE) {
+                if (arr[off + i] != otherArr[otherOff + i]) {
+                    return false
+                }
             }
+            return true
         }
     }
 
-    return true
-}
-
-private fun checkSystemFeatureDep(dep: ComplexDependency): Boolean {
-    val featureInfo: FeatureInfo = maybeGetSystemFeatureInfo(dep.lhs) ?: return false
-    return dep.check(featureInfo.version.toLong())
-}
-
-private fun checkPackageDep(dep: ComplexDependency, dependentManifestPkgName: String,
-                            repo: Repo, enforceSystemPkg: Boolean = false): Boolean {
-    val manifestPackageName = dep.lhs
-    val packageName = repo.translateManifestPackageName(manifestPackageName)
-    val pi = pkgManager.getPackageInfoOrNull(packageName) ?: return false
-    val appInfo = pi.applicationInfo ?: return false
-    if (!appInfo.enabled && manifestPackageName != dependentManifestPkgName) {
-        return false
+    // hex string of the digest, without copying the digest first
+    @Synchronized
+    fun getHex(idx: Int): String {
+        check(idx in 0 until count)
+        val off = idx * SHA256_SIZE
+        val sb = StringBuilder(SHA256_SIZE * 2)
+        for (i in off until off + SHA256_SIZE) {
+            val v = arr[i].toInt() and 0xff
+            sb.append(Character.forDigit(v shr 4, 16))
+            sb.append(Character.forDigit(v and 0xf, 16))
+        }
+        return sb.toString()
     }
-    if (enforceSystemPkg) {
-        if (appInfo.flags and ApplicationInfo.FLAG_SYSTEM == 0) {
+
+    @Synchronized
+    fun matches(idx: Int, digest: ByteArray): Boolean {
+        check(idx in 0 until count)
+        if (digest.size != SHA256_SIZE) {
             return false
         }
+        val off = idx * SHA256_SIZE
+        for (i in 0 until SHA256_SIZE) {
+            if (arr[off + i] != digest[i]) {
+                return false
+            }
+        }
+        return true
     }
-    return dep.check(pi.longVersionCode)
-}
 
-private fun hexStringToByteArray(s: String): ByteArray {
-    // each byte takes 2 characters, so length must be even
-    require(s.length.isEven())
+    val size: Int
+        @Synchronized get() = count
 
-    val len = s.length / 2
-    val arr = ByteArray(len)
-    for (i in 0 until len) {
-        val off = i shl 1
-        val top: Int = Character.digit(s[off].code, 16)
-        val bot: Int = Character.digit(s[off + 1].code, 16)
-        arr[i] = ((top shl 4) or bot).toByte()
+    val capacityBytes: Int
+        @Synchronized get() = arr.size
+
+    companion object {
+        const val SHA256_SIZE = 256 / 8
     }
-    return arr
 }
 
-private fun shouldSkipRenamedPackages(): Boolean {
-    val buildIncremental: Long? = Build.VERSION.INCREMENTAL.toLongOrNull()
-    return buildIncremental != null
-            // updates of packages that were renamed by the original-package system cause a
-            // system_server crash on these versions.
-            // See https://github.com/GrapheneOS/platform_frameworks_base/commit/3fd0aaea464535b683a231bd92627056c2e02518
-            && buildIncremental > 2024_0303_00 && buildIncremental <= 2024_0311_00
+private val deviceAbi: Apk.Abi = run {
+    // Intentionally don't support secondary ABIs. They are expected to work worse than the primary ABI.
+    val osName: String = Build.SUPPORTED_ABIS.first()
+    Apk.Abi.entries.first { it.osName == osName }
 }
@@ -0,0 +1,98 @@
+package app.grapheneos.apps.core
+
+import android.util.Log
+import app.grapheneos.apps.util.Utf8JsonReader
+import app.grapheneos.apps.util.hexStringToByteArray
+import java.io.ByteArrayOutputStream
+import java.nio.charset.StandardCharsets.UTF_8
+import java.security.MessageDigest
+
+// Delta metadata is signed in the same way as full metadata (see readSignedJson()) and has the
+// following format:
+// {
+//   "baseTime": timestamp of the metadata that this delta applies to,
+//   "baseSha256": SHA-256 of the JSON of base metadata,
+//   "sha256": SHA-256 of the JSON of resulting metadata,
+//   "patch": list of operations, each of which is either
+//      [offset, length]: copy the specified range of base metadata JSON, or
+//      "string": insert UTF-8 encoding of the string
+// }
+//
+// Resulting metadata is trusted only because its hash is covered by the delta signature.
+
+private const val TAG = "RepoDelta"
+
+// Returns base if delta doesn't change it, or null if delta can't be applied to it
+fun applyRepoDelta(delta: RepoJson, base: RepoJson, baseTimestamp: Long): RepoJson? {
+    var baseTime: Long? = null
+    var baseSha256: String? = null
+    var sha256: String? = null
+    var patchOffset = -1
+
+    val reader = Utf8JsonReader(delta.bytes, delta.offset, delta.end)
+    reader.beginObject()
+    while (reader.hasNext()) {
+        when (reader.nextName()) {
+            "baseTime" -> baseTime = reader.nextLong()
+            "baseSha256" -> baseSha256 = reader.nextString()
+            "sha256" -> sha256 = reader.nextString()
+            "patch" -> {
+                patchOffset = reader.nextValueOffset()
+                reader.skipValue()
+            }
+            else -> reader.skipValue()
+        }
+    }
+    reader.endObject()
+
+    checkNotNull(baseTime) { "missing \"baseTime\"" }
+    checkNotNull(baseSha256) { "missing \"baseSha256\"" }
+    checkNotNull(sha256) { "missing \"sha256\"" }
+    check(patchOffset >= 0) { "missing \"patch\"" }
+
+    if (baseTime != baseTimestamp) {
+        Log.d(TAG, "delta is for a different base: $baseTime, expected $baseTimestamp")
+        return null
+    }
+
+    val baseDigest = hexStringToByteArray(baseSha256)
+    if (!MessageDigest.isEqual(base.sha256(), baseDigest)) {
+        Log.w(TAG, "base metadata hash mismatch")
+        return null
+    }
+
+    val resultDigest = hexStringToByteArray(sha256)
+    if (MessageDigest.isEqual(resultDigest, baseDigest)) {
+        return base
+    }
+
+    val baseLength = base.end - base.offset
+    val out = ByteArrayOutputStream(baseLength + (baseLength shr 4))
+
+    val patch = reader.newReaderAt(patchOffset)
+    patch.beginArray()
+    while (patch.hasNext()) {
+        when (patch.peek()) {
+            Utf8JsonReader.Token.BEGIN_ARRAY -> {
+                patch.beginArray()
+                val off = patch.nextInt()
+                val len = patch.nextInt()
+                patch.endArray()
+                check(off >= 0 && len >= 0 && off <= baseLength - len) { "invalid copy range" }
+                out.write(base.bytes, base.offset + off, len)
+            }
+            Utf8JsonReader.Token.STRING -> {
+                out.write(patch.nextString().toByteArray(UTF_8))
+            }
+            else -> throw IllegalStateException("invalid patch operation")
+        }
+    }
+    patch.endArray()
+
+    val result = RepoJson(out.toByteArray())
+    if (!MessageDigest.isEqual(result.sha256(), resultDigest)) {
+        Log.w(TAG, "resulting metadata hash mismatch")
+        return null
+    }
+    return result
+}
@@ -0,0 +1,73 @@
+package app.grapheneos.apps.core
+
+// Summary of changes of PackageStates that were caused by a repo update
+class RepoDiff {
+    val added = ArrayList<String>()
+    val removed = ArrayList<String>()
+    val updated = ArrayList<String>()
+
+    fun hasStructuralChanges() = added.isNotEmpty() || removed.isNotEmpty()
+
+    override fun toString() = "added: ${added.size} $added, removed: ${removed.size} $removed, " +
+            "updated: ${updated.size} $updated"
+}
+
+// Whether the package is unchanged from the point of view of its PackageState and the UI.
+// APK lists are not compared: APKs of a given package version are not expected to change, and
+// comparing them would force their materialization (see RPackage.apks)
+fun RPackage.isEquivalentTo(other: RPackage): Boolean {
+    if (this === other) {
+        return true
+    }
+
+    return versionCode == other.versionCode
+            && releaseChannel == other.releaseChannel
+            && label == other.label
+            && versionName == other.versionName
+            && description == other.description
+            && releaseNotes == other.releaseNotes
+            && hasV4Signatures == other.hasV4Signatures
+            && abis.contentEquals(other.abis)
+            && areDependenciesEquivalent(dependencies, other.dependencies)
+            && common.isEquivalentTo(other.common)
+}
+
+private fun RPackageContainer.isEquivalentTo(other: RPackageContainer): Boolean {
+    return packageName == other.packageName
+            && manifestPackageName == other.manifestPackageName
+            && description == other.description
+            && source == other.source
+            && noCode == other.noCode
+            && isTopLevel == other.isTopLevel
+            && showAutoUpdateNotifications == other.showAutoUpdateNotifications
+            && isSharedLibrary == other.isSharedLibrary
+            && packagesAllowedToTriggerUpdate == other.packagesAllowedToTriggerUpdate
+            && iconUrl == other.iconUrl
+            && groupName == other.groupName
+            && areDependenciesEquivalent(dependencies, other.dependencies)
+            && hasFsvSigSignatures == other.hasFsvSigSignatures
+            && requestUpdateOwnership == other.requestUpdateOwnership
+            && optOutOfBulkUpdates == other.optOutOfBulkUpdates
+            && hasSameValidCertDigestsAs(other)
+            // set of available variants affects release channel selection
+            && variants.size == other.variants.size
+            && variants.indices.all {
+                val v = variants[it]
+                val o = other.variants[it]
+                v.versionCode == o.versionCode && v.releaseChannel == o.releaseChannel
+            }
+}
+
+private fun areDependenciesEquivalent(a: Array<Dependency>?, b: Array<Dependency>?): Boolean {
+    if (a == null || b == null) {
+        return a == null && b == null
+    }
+    if (a.size != b.size) {
+        return false
+    }
+    return a.indices.all {
+        val x = a[it]
+        val y = b[it]
+        x.packageName == y.packageName && x.minVersion == y.minVersion && x.flags == y.flags
+    }
+}
@@ -0,0 +1,377 @@
+package app.grapheneos.apps.core
+
+import android.os.Build
+import android.util.ArrayMap
+import android.util.ArraySet
+import android.util.Log
+import app.grapheneos.apps.BuildConfig
+import app.grapheneos.apps.util.AtomicFile2
+import app.grapheneos.apps.util.readNullableString
+import app.grapheneos.apps.util.readString
+import app.grapheneos.apps.util.readStringList
+import app.grapheneos.apps.util.writeNullableString
+import app.grapheneos.apps.util.writeString
+import app.grapheneos.apps.util.writeStringList
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+// Binary index of the parsed and filtered repo. It's written next to the repo metadata cache after
+// each repo update and is loaded at app startup instead of parsing the metadata: hashes and numbers
+// are stored in binary form and packages, variants and APKs that were filtered out are omitted.
+//
+// Index is ignored (and metadata cache is parsed instead) if it was written by a different version
+// of the app or on a different OS build, if its checksum doesn't match, or if the state of any of
+// the packages that affected repo filtering has changed (see Repo.filterInputs).
+//
+// Format:
+// int file version
+// int app version code
+// String Build.FINGERPRINT
+// String eTag
+// long CRC32 of the rest of the file
+// Repo
+//
+// APK lists are stored as length-prefixed sections that are decoded lazily (see RPackage.apks)
+
+private const val TAG = "RepoIndex"
+
+private const val INDEX_FILE_VERSION = 4
+
+private val indexFile = AtomicFile2("repo_index")
+
+fun deleteRepoIndex() = indexFile.delete()
+
+fun writeRepoIndex(repo: Repo) {
+    check(!repo.isDummy)
+
+    val baos = ByteArrayOutputStream(1 shl 18)
+    val checksumOffset: Int
+    DataOutputStream(baos).let {
+        it.writeInt(INDEX_FILE_VERSION)
+        it.writeInt(BuildConfig.VERSION_CODE)
+        it.writeString(Build.FINGERPRINT)
+        it.writeString(repo.eTag)
+        checksumOffset = it.size()
+        // placeholder, checksum is written after the rest of the file
+        it.writeLong(0L)
+        writeRepo(it, repo)
+    }
+
+    val bytes = baos.toByteArray()
+    val bodyOffset = checksumOffset + 8
+    val crc = CRC32()
+    crc.update(bytes, bodyOffset, bytes.size - bodyOffset)
+    ByteBuffer.wrap(bytes).putLong(checksumOffset, crc.value)
+
+    indexFile.write(bytes)
+}
+
+fun readRepoIndex(): Repo? {
+    val bytes = indexFile.read() ?: return null
+
+    return try {
+        readRepoIndexInner(bytes)
+    } catch (e: Exception) {
+        Log.w(TAG, "unable to read repo index", e)
+        null
+    }
+}
+
+private fun readRepoIndexInner(bytes: ByteArray): Repo? {
+    val dis = DataInputStream(ByteArrayInputStream(bytes))
+
+    if (dis.readInt() != INDEX_FILE_VERSION || dis.readInt() != BuildConfig.VERSION_CODE) {
+        return null
+    }
+
+    if (dis.readString() != Build.FINGERPRINT) {
+        Log.d(TAG, "OS build has changed")
+        return null
+    }
+
+    val eTag = dis.readString()
+
+    val checksum = dis.readLong()
+    val bodyOffset = bytes.size - dis.available()
+    val crc = CRC32()
+    crc.update(bytes, bodyOffset, bytes.size - bodyOffset)
+    if (crc.value != checksum) {
+        Log.w(TAG, "checksum mismatch")
+        return null
+    }
+
+    val repo = readRepo(bytes, dis, eTag) ?: return null
+    check(dis.available() == 0)
+    return repo
+}
+
+private fun writeRepo(out: DataOutputStream, repo: Repo) {
+    out.writeLong(repo.timestamp)
+
+    val filterInputs = repo.filterInputs
+    out.writeInt(filterInputs.size)
+    for (i in 0 until filterInputs.size) {
+        out.writeString(filterInputs.keyAt(i))
+        val input = filterInputs.valueAt(i)
+        out.writeLong(input.versionCode)
+        out.writeInt(input.flags)
+    }
+
+    val fsVerityCerts = repo.fsVerityCerts
+    out.writeInt(fsVerityCerts?.size ?: -1)
+    fsVerityCerts?.forEach { (id, cert) ->
+        out.writeString(id)
+        out.writeString(cert)
+    }
+
+    val renamedPackages = repo.renamedPackages
+    out.writeInt(renamedPackages.size)
+    for (i in 0 until renamedPackages.size) {
+        out.writeString(renamedPackages.keyAt(i))
+        out.writeString(renamedPackages.valueAt(i))
+    }
+
+    out.writeInt(repo.packages.size)
+    repo.packages.values.forEach {
+        writeRPackageContainer(out, it)
+    }
+}
+
+private fun readRepo(bytes: ByteArray, dis: DataInputStream, eTag: String): Repo? {
+    val timestamp = dis.readLong()
+
+    val numFilterInputs = dis.readInt()
+    val filterInputs = ArrayMap<String, FilterInput>(numFilterInputs)
+    repeat(numFilterInputs) {
+        val pkgName = dis.readString()
+        val input = FilterInput(dis.readLong(), dis.readInt())
+        if (!FilterInput.of(InstalledPackageIndex.getPackageInfo(pkgName)).isSameAs(input)) {
+            Log.d(TAG, "state of $pkgName has changed")
+            return null
+        }
+        filterInputs.put(pkgName, input)
+    }
+
+    val numFsVerityCerts = dis.readInt()
+    val fsVerityCerts: Map<String, String>? = if (numFsVerityCerts >= 0) {
+        val map = ArrayMap<String, String>(numFsVerityCerts)
+        repeat(numFsVerityCerts) {
+            val id = dis.readString()
+            map.put(id, dis.readString())
+        }
+        map
+    } else {
+        null
+    }
+
+    val repo = Repo(timestamp, eTag, fsVerityCerts)
+    repo.filterInputs.putAll(filterInputs)
+
+    repeat(dis.readInt()) {
+        val manifestPackageName = dis.readString()
+        repo.renamedPackages.put(manifestPackageName, dis.readString())
+    }
+
+    repeat(dis.readInt()) {
+        repo.addPackage(readRPackageContainer(bytes, dis, repo))
+    }
+
+    return repo
+}
+
+private fun writeRPackageContainer(out: DataOutputStream, c: RPackageContainer) {
+    out.writeString(c.packageName)
+    out.writeString(c.manifestPackageName)
+    out.writeNullableString(c.description)
+    out.writeByte(c.source.ordinal)
+    out.writeBoolean(c.noCode)
+    out.writeBoolean(c.isTopLevel)
+    out.writeBoolean(c.showAutoUpdateNotifications)
+    out.writeBoolean(c.isSharedLibrary)
+    out.writeStringList(c.packagesAllowedToTriggerUpdate)
+    out.writeInt(c.validCertDigestIndices.size)
+    c.validCertDigests.forEach {
+        writeSha256(out, it)
+    }
+    out.writeNullableString(c.iconUrl)
+    out.writeNullableString(c.groupName)
+    writeDependencies(out, c.dependencies)
+    out.writeBoolean(c.hasFsvSigSignatures)
+    out.writeBoolean(c.requestUpdateOwnership)
+    out.writeBoolean(c.optOutOfBulkUpdates)
+
+    out.writeInt(c.variants.size)
+    c.variants.forEach {
+        writeRPackage(out, it)
+    }
+}
+
+private fun readRPackageContainer(bytes: ByteArray, dis: DataInputStream, repo: Repo): RPackageContainer {
+    return RPackageContainer(
+        repo,
+        packageName = dis.readString(),
+        manifestPackageName = dis.readString(),
+        description = dis.readNullableString(),
+        source = PackageSource.entries[dis.readByte().toInt()],
+        noCode = dis.readBoolean(),
+        isTopLevel = dis.readBoolean(),
+        showAutoUpdateNotifications = dis.readBoolean(),
+        isSharedLibrary = dis.readBoolean(),
+        packagesAllowedToTriggerUpdate = dis.readStringList(),
+        validCertDigestIndices = IntArray(dis.readInt()) { repo.hashes.add(readSha256(dis)) },
+        iconUrl = dis.readNullableString(),
+        groupName = dis.readNullableString(),
+        dependencies = readDependencies(dis),
+        hasFsvSigSignatures = dis.readBoolean(),
+        requestUpdateOwnership = dis.readBoolean(),
+        optOutOfBulkUpdates = dis.readBoolean(),
+        makeVariants = { container ->
+            List(dis.readInt()) { readRPackage(bytes, dis, container) }
+        },
+    )
+}
+
+private fun writeRPackage(out: DataOutputStream, pkg: RPackage) {
+    out.writeLong(pkg.versionCode)
+    val abis = pkg.abis
+    out.writeBoolean(abis != null)
+    if (abis != null) {
+        out.writeStringList(abis.asList())
+    }
+    out.writeString(pkg.label)
+    out.writeString(pkg.versionName)
+    out.writeNullableString(pkg.description)
+    out.writeNullableString(pkg.releaseNotes)
+    writeDependencies(out, pkg.dependencies)
+    out.writeByte(pkg.releaseChannel.ordinal)
+
+    out.writeBoolean(pkg.hasV4Signatures)
+
+    val apksSection = ByteArrayOutputStream()
+    DataOutputStream(apksSection).let { s ->
+        // Materializes the list. Parsing it separately for serialization would intern its digests
+        // into repo.hashes again each time the index is written
+        val apks = pkg.apks
+        s.writeInt(apks.size)
+        apks.forEach {
+            s.writeString(it.name)
+            writeSha256(s, it.sha256)
+            s.writeLong(it.size)
+            s.writeLong(it.compressedSize)
+            val compressedSha256 = it.compressedSha256
+            s.writeBoolean(compressedSha256 != null)
+            if (compressedSha256 != null) {
+                writeSha256(s, compressedSha256)
+            }
+            val patches = it.patches
+            s.writeInt(patches?.size ?: 0)
+            patches?.forEach { patch ->
+                s.writeLong(patch.fromVersionCode)
+                s.writeLong(patch.size)
+            }
+        }
+    }
+    out.writeInt(apksSection.size())
+    apksSection.writeTo(out)
+}
+
+private fun readRPackage(bytes: ByteArray, dis: DataInputStream, common: RPackageContainer): RPackage {
+    val versionCode = dis.readLong()
+    val abis = if (dis.readBoolean()) dis.readStringList().toTypedArray() else null
+    val label = dis.readString()
+    val versionName = dis.readString()
+    val description = dis.readNullableString()
+    val releaseNotes = dis.readNullableString()
+    val dependencies = readDependencies(dis) ?: emptyArray()
+    val releaseChannel = ReleaseChannel.entries[dis.readByte().toInt()]
+
+    val hasV4Signatures = dis.readBoolean()
+
+    val apksSectionLen = dis.readInt()
+    val apksSectionOffset = bytes.size - dis.available()
+    check(dis.skipBytes(apksSectionLen) == apksSectionLen)
+
+    return RPackage(common, versionCode, abis, label, versionName, description, releaseNotes,
+        dependencies, releaseChannel, hasV4Signatures,
+        makeApks = { pkg ->
+            readApks(pkg, DataInputStream(ByteArrayInputStream(bytes, apksSectionOffset, apksSectionLen)))
+        },
+    )
+}
+
+private fun readApks(pkg: RPackage, dis: DataInputStream): List<Apk> {
+    val numApks = dis.readInt()
+    val apkNames = ArrayList<String>(numApks)
+    val apkHashes = IntArray(numApks)
+    val apkSizes = LongArray(numApks)
+    val compressedSizes = LongArray(numApks)
+    val compressedHashes = IntArray(numApks)
+    val patches = arrayOfNulls<List<ApkPatch>>(numApks)
+    val hashes = pkg.common.repo.hashes
+    for (i in 0 until numApks) {
+        apkNames.add(dis.readString())
+        apkHashes[i] = hashes.add(readSha256(dis))
+        apkSizes[i] = dis.readLong()
+        compressedSizes[i] = dis.readLong()
+        compressedHashes[i] = if (dis.readBoolean()) hashes.add(readSha256(dis)) else -1
+        val numPatches = dis.readInt()
+        if (numPatches != 0) {
+            patches[i] = List(numPatches) { ApkPatch(dis.readLong(), dis.readLong()) }
+        }
+    }
+    check(dis.available() == 0)
+
+    return makeApkList(pkg, apkNames, apkHashes, apkSizes, compressedSizes, compressedHashes, patches)
+}
+
+private fun writeDependencies(out: DataOutputStream, deps: Array<Dependency>?) {
+    out.writeInt(deps?.size ?: -1)
+    deps?.forEach { dep ->
+        out.writeString(dep.packageName)
+        out.writeLong(dep.minVersion)
+        var flags = 0
+        dep.flags.forEach {
+            flags = flags or (1 shl it.ordinal)
+        }
+        out.writeInt(flags)
+    }
+}
+
+private fun readDependencies(dis: DataInputStream): Array<Dependency>? {
+    val len = dis.readInt()
+    if (len < 0) {
+        return null
+    }
+    return Array(len) {
+        val packageName = dis.readString()
+        val minVersion = dis.readLong()
+        val flagBits = dis.readInt()
+        val flags: Set<Dependency.Flag> = if (flagBits == 0) {
+            emptySet()
+        } else {
+            val set = ArraySet<Dependency.Flag>()
+            Dependency.Flag.entries.forEach {
+                if (flagBits and (1 shl it.ordinal) != 0) {
+                    set.add(it)
+                }
+            }
+            set
+        }
+        Dependency(packageName, minVersion, flags)
+    }
+}
+
+private fun writeSha256(out: DataOutputStream, hash: ByteArray) {
+    check(hash.size == (256 / 8))
+    out.write(hash)
+}
+
+private fun readSha256(dis: DataInputStream): ByteArray {
+    val arr = ByteArray(256 / 8)
+    dis.readFully(arr)
+    return arr
+}
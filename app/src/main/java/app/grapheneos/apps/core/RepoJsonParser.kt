@@ -0,0 +1,549 @@
+package app.grapheneos.apps.core
+
+import android.content.pm.ApplicationInfo
+import android.content.pm.FeatureInfo
+import android.content.pm.PackageInfo
+import android.os.Build
+import app.grapheneos.apps.util.Utf8JsonReader
+import app.grapheneos.apps.util.maybeGetSystemFeatureInfo
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+
+// Metadata is parsed in a streaming manner directly from the verified bytes. Packages are first
+// scanned to collect the data that is needed before any of them can be parsed (original-package
+// renames, static constraints), and are then parsed from their offsets.
+// APK lists are parsed lazily (see RPackage.apks), which retains the metadata bytes until all of
+// them are materialized
+suspend fun parseRepoJson(metadata: ByteArray, offset: Int, end: Int, eTag: String, isDummy: Boolean = false): Repo {
+    var timestamp: Long? = null
+    var packageEntries: List<PackageEntry> = emptyList()
+    var fsVerityCerts: Map<String, String>? = null
+
+    val reader = Utf8JsonReader(metadata, offset, end)
+    reader.beginObject()
+    while (reader.hasNext()) {
+        when (reader.nextName()) {
+            "time" -> timestamp = reader.nextLong()
+            "packages" -> packageEntries = scanPackages(reader)
+            "fsVerityCerts" -> fsVerityCerts = reader.nextStringMap()
+            else -> reader.skipValue()
+        }
+    }
+    reader.endObject()
+
+    val repo = Repo(checkNotNull(timestamp) { "missing \"time\"" }, eTag, fsVerityCerts, isDummy)
+
+    // Collect packages renamed via original-package system. Applicable only to preinstalled apps.
+    // Lookups are performed in parallel, their results are merged in package order
+    val originalPackageInfos = packageEntries.parallelMap { entry ->
+        entry.originalPackage?.let { getPackageInfoForFiltering(repo, it) }
+    }
+
+    packageEntries.forEachIndexed { idx, entry ->
+        val originalPackage = entry.originalPackage ?: return@forEachIndexed
+        originalPackageInfos[idx]?.let {
+            val ai = it.applicationInfo
+            if (ai != null && ai.flags and ApplicationInfo.FLAG_SYSTEM != 0) {
+                repo.renamedPackages.put(entry.manifestPackageName, originalPackage)
+            }
+        }
+    }
+
+    // Packages are independent of each other at this point: renamedPackages is only read from now on
+    val containers = packageEntries.parallelMap { entry ->
+        parsePackageEntry(repo, entry, reader)
+    }
+
+    containers.forEach {
+        if (it != null) {
+            repo.addPackage(it)
+        }
+    }
+
+    return repo
+}
+
+// Returns null if the package is filtered out
+private fun parsePackageEntry(repo: Repo, entry: PackageEntry, reader: Utf8JsonReader): RPackageContainer? {
+    val manifestPackageName = entry.manifestPackageName
+
+    if (!checkStaticDeps(entry.staticConstraints, manifestPackageName, repo)) {
+        return null
+    }
+
+    val packageName = repo.translateManifestPackageName(manifestPackageName)
+
+    if (Build.VERSION.SDK_INT == 34 && isPrivilegedInstaller
+        && packageName != manifestPackageName && shouldSkipRenamedPackages()
+    ) {
+        return null
+    }
+
+    val res = parseRPackageContainer(repo, packageName, manifestPackageName,
+        reader.newReaderAt(entry.offset))
+    return if (res.variants.isNotEmpty()) res else null
+}
+
+// Splits the list into work units that are processed on Dispatchers.Default, which is bounded by
+// the number of CPU cores. Results are returned in the order of the list
+private suspend fun <T, R> List<T>.parallelMap(block: (T) -> R): List<R> {
+    val numCpus = Runtime.getRuntime().availableProcessors()
+    if (numCpus == 1 || size < 64) {
+        return map(block)
+    }
+
+    // several units per core to smooth out differences in per-package cost
+    val unitSize = (size + numCpus * 4 - 1) / (numCpus * 4)
+
+    return coroutineScope {
+        chunked(unitSize).map { unit ->
+            async(Dispatchers.Default) {
+                unit.map(block)
+            }
+        }.awaitAll().flatten()
+    }
+}
+
+// Data about the package that is needed before it can be parsed
+private class PackageEntry(val manifestPackageName: String, val offset: Int) {
+    var originalPackage: String? = null
+    val staticConstraints = StaticConstraints()
+}
+
+private fun scanPackages(reader: Utf8JsonReader): List<PackageEntry> {
+    val list = ArrayList<PackageEntry>()
+    reader.beginObject()
+    while (reader.hasNext()) {
+        val entry = PackageEntry(reader.nextName(), reader.nextValueOffset())
+        reader.beginObject()
+        while (reader.hasNext()) {
+            val name = reader.nextName()
+            if (name == "originalPackage") {
+                entry.originalPackage = reader.nextString()
+            } else if (!entry.staticConstraints.maybeRead(name, reader)) {
+                reader.skipValue()
+            }
+        }
+        reader.endObject()
+        list.add(entry)
+    }
+    reader.endObject()
+    return list
+}
+
+private fun parseRPackageContainer(repo: Repo, packageName: String, manifestPackageName: String,
+                                   reader: Utf8JsonReader): RPackageContainer {
+    var description: String? = null
+    var source: String? = null
+    var noCode = false
+    var isTopLevel = true
+    var showAutoUpdateNotifications: Boolean? = null
+    var isSharedLibrary = false
+    var packagesAllowedToTriggerUpdate: List<String>? = null
+    var signatures: List<String>? = null
+    var iconType: String? = null
+    var groupName: String? = null
+    var deps: List<String>? = null
+    var deps2: List<String>? = null
+    var variantsOffset = -1
+    var hasFsVeritySignatures = false
+    var requestUpdateOwnership = true
+    var optOutOfBulkUpdates = false
+
+    reader.beginObject()
+    while (reader.hasNext()) {
+        when (reader.nextName()) {
+            "description" -> description = reader.nextString()
+            "source" -> source = reader.nextString()
+            "noCode" -> noCode = reader.nextBoolean()
+            "isTopLevel" -> isTopLevel = reader.nextBoolean()
+            "showAutoUpdateNotifications" -> showAutoUpdateNotifications = reader.nextBoolean()
+            "isSharedLibrary" -> isSharedLibrary = reader.nextBoolean()
+            "packagesAllowedToTriggerUpdate" -> packagesAllowedToTriggerUpdate = reader.nextStringList()
+            "signatures" /* historical name */ -> signatures = reader.nextStringList()
+            "iconType" -> iconType = reader.nextString()
+            "group" -> groupName = reader.nextString()
+            "deps" -> deps = reader.nextStringList()
+            "deps2" -> deps2 = reader.nextStringList()
+            "variants" -> {
+                // variants are parsed after the rest of the package, they depend on its
+                // common properties
+                variantsOffset = reader.nextValueOffset()
+                reader.skipValue()
+            }
+            "hasFsVeritySignatures" -> hasFsVeritySignatures = reader.nextBoolean()
+            "requestUpdateOwnership" -> requestUpdateOwnership = reader.nextBoolean()
+            "optOutOfBulkUpdates" -> optOutOfBulkUpdates = reader.nextBoolean()
+            else -> reader.skipValue()
+        }
+    }
+    reader.endObject()
+
+    check(variantsOffset >= 0) { "missing \"variants\"" }
+
+    return RPackageContainer(
+        repo, packageName, manifestPackageName,
+        description = description,
+        source = if (source != null) PackageSource.valueOf(source) else PackageSource.GrapheneOS_build,
+        noCode = noCode,
+        isTopLevel = isTopLevel,
+        showAutoUpdateNotifications = showAutoUpdateNotifications ?: !noCode,
+        isSharedLibrary = isSharedLibrary,
+        packagesAllowedToTriggerUpdate = packagesAllowedToTriggerUpdate?.map {
+            repo.translateManifestPackageName(it)
+        } ?: emptyList(),
+        validCertDigestIndices = checkNotNull(signatures) { "missing \"signatures\"" }.let { list ->
+            IntArray(list.size) { repo.hashes.addHex(list[it]) }
+        },
+        iconUrl = if (iconType != null) {
+            "$REPO_BASE_URL/packages/$manifestPackageName/icon.$iconType"
+        } else {
+            null
+        },
+        groupName = groupName,
+        dependencies = parseDependencies(deps2 ?: deps, repo),
+        hasFsvSigSignatures = if (Build.VERSION.SDK_INT >= 35) {
+            // fsv_sig are not used by the OS since SDK 35, v4 APK signatures are used instead
+            false
+        } else {
+            hasFsVeritySignatures
+        },
+        requestUpdateOwnership = requestUpdateOwnership,
+        optOutOfBulkUpdates = optOutOfBulkUpdates,
+        makeVariants = { container ->
+            parseVariants(container, reader.newReaderAt(variantsOffset))
+        },
+    )
+}
+
+private fun parseVariants(container: RPackageContainer, reader: Utf8JsonReader): List<RPackage> {
+    val repo = container.repo
+    val pkgs = arrayOfNulls<RPackage>(ReleaseChannel.entries.size)
+
+    reader.beginObject()
+    while (reader.hasNext()) {
+        val versionString = reader.nextName()
+        val variantOffset = reader.nextValueOffset()
+
+        // static constraints of the variant are checked before parsing the rest of it
+        var minSdk = 0
+        var maxSdk = Int.MAX_VALUE
+        var abis: List<String>? = null
+        val staticConstraints = StaticConstraints()
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            val name = reader.nextName()
+            when (name) {
+                "minSdk" -> minSdk = reader.nextInt()
+                "maxSdk" -> maxSdk = reader.nextInt()
+                "abis" -> abis = reader.nextStringList()
+                else -> if (!staticConstraints.maybeRead(name, reader)) {
+                    reader.skipValue()
+                }
+            }
+        }
+        reader.endObject()
+
+        if (minSdk > Build.VERSION.SDK_INT) {
+            continue
+        }
+
+        if (maxSdk < Build.VERSION.SDK_INT) {
+            continue
+        }
+
+        if (abis != null) {
+            // intentionally don't support secondary ABIs
+            val abi = Build.SUPPORTED_ABIS.first()
+            if (abis.none { it == abi }) {
+                continue
+            }
+        }
+
+        if (!checkStaticDeps(staticConstraints, container.manifestPackageName, repo)) {
+            continue
+        }
+
+        val pkg = parseRPackage(container, versionString.toLong(), abis?.toTypedArray(),
+            reader, variantOffset)
+
+        val arrayIndex = pkg.releaseChannel.ordinal
+
+        val prevPkg = pkgs[arrayIndex]
+
+        // make sure there's at most one package in each release channel
+        if (prevPkg != null) {
+            if (prevPkg.versionCode > pkg.versionCode) {
+                continue
+            }
+            if (prevPkg.abis != null && pkg.abis != null) {
+                val prevNumAbiMismatches =
+                    prevPkg.abis.count { !Build.SUPPORTED_ABIS.contains(it) } +
+                            Build.SUPPORTED_ABIS.count { !prevPkg.abis.contains(it) }
+
+                val numAbiMismatches = pkg.abis.count { !Build.SUPPORTED_ABIS.contains(it) } +
+                        Build.SUPPORTED_ABIS.count { !pkg.abis.contains(it) }
+
+                if (prevNumAbiMismatches < numAbiMismatches) {
+                    continue
+                }
+            }
+        }
+
+        pkgs[arrayIndex] = pkg
+    }
+    reader.endObject()
+
+    return pkgs.filterNotNull()
+}
+
+// APK fields are skipped here and are parsed from variantOffset on first access to RPackage.apks
+private fun parseRPackage(common: RPackageContainer, versionCode: Long, abis: Array<String>?,
+                          parentReader: Utf8JsonReader, variantOffset: Int): RPackage {
+    val reader = parentReader.newReaderAt(variantOffset)
+
+    var label: String? = null
+    var versionName: String? = null
+    var description: String? = null
+    var releaseNotes: String? = null
+    var deps: List<String>? = null
+    var deps2: List<String>? = null
+    var channel: String? = null
+    var hasV4Signatures = false
+
+    reader.beginObject()
+    while (reader.hasNext()) {
+        when (reader.nextName()) {
+            "label" -> label = reader.nextString()
+            "versionName" -> versionName = reader.nextString()
+            "description" -> description = reader.nextString()
+            "releaseNotes" -> releaseNotes = reader.nextString()
+            "deps" -> deps = reader.nextStringList()
+            "deps2" -> deps2 = reader.nextStringList()
+            "channel" -> channel = reader.nextString()
+            "hasV4Signatures" -> hasV4Signatures = reader.nextBoolean()
+            else -> reader.skipValue()
+        }
+    }
+    reader.endObject()
+
+    return RPackage(
+        common, versionCode, abis,
+        label = checkNotNull(label) { "missing \"label\"" },
+        versionName = versionName ?: versionCode.toString(),
+        description = description ?: common.description,
+        releaseNotes = releaseNotes,
+        dependencies = parseDependencies(deps2 ?: deps, common.repo) ?: common.dependencies ?: emptyDependencyArray,
+        releaseChannel = ReleaseChannel.valueOf(channel ?: ReleaseChannel.stable.name),
+        hasV4Signatures = if (Build.VERSION.SDK_INT >= 35) {
+            // v4 signatures are used by the OS to enable fs-verity for APKs
+            hasV4Signatures
+        } else {
+            // v4 signatures are supported since SDK 30, but before SDK 35 they were used only for
+            // IncFS-backed APK streaming, which isn't used by this installer
+            false
+        },
+        makeApks = { pkg ->
+            parseApks(pkg, parentReader.newReaderAt(variantOffset))
+        },
+    )
+}
+
+private fun parseApks(pkg: RPackage, reader: Utf8JsonReader): List<Apk> {
+    var apkNames: List<String>? = null
+    var apkHashes: List<String>? = null
+    var apkSizes: LongArray? = null
+    var apkGzSizes: LongArray? = null
+    var apkGzHashes: List<String>? = null
+    var patchesOffset = -1
+
+    reader.beginObject()
+    while (reader.hasNext()) {
+        when (reader.nextName()) {
+            "apks" -> apkNames = reader.nextStringList()
+            "apkHashes" -> apkHashes = reader.nextStringList()
+            "apkSizes" -> apkSizes = reader.nextLongList()
+            "apkGzSizes" -> apkGzSizes = reader.nextLongList()
+            "apkGzHashes" -> apkGzHashes = reader.nextStringList()
+            "apkPatches" -> {
+                patchesOffset = reader.nextValueOffset()
+                reader.skipValue()
+            }
+            else -> reader.skipValue()
+        }
+    }
+    reader.endObject()
+
+    checkNotNull(apkNames) { "missing \"apks\"" }
+    val numApks = apkNames.size
+    val hashes = pkg.common.repo.hashes
+
+    val compressedSizes = checkNotNull(apkGzSizes) { "missing \"apkGzSizes\"" }
+    check(compressedSizes.size == numApks)
+    // hashes of gzip-compressed APKs are optional
+    val compressedHashes = apkGzHashes?.let { list ->
+        check(list.size == numApks)
+        IntArray(numApks) { hashes.addHex(list[it]) }
+    } ?: IntArray(numApks) { -1 }
+
+    val patches = arrayOfNulls<List<ApkPatch>>(numApks)
+
+    if (patchesOffset >= 0) {
+        // "apkPatches": { "<from version code>": [ <patch size of each APK, 0 if there's no patch> ] }
+        val r = reader.newReaderAt(patchesOffset)
+        r.beginObject()
+        while (r.hasNext()) {
+            val fromVersionCode = r.nextName().toLong()
+            val sizes = r.nextLongList()
+            check(sizes.size == numApks)
+            for (i in 0 until numApks) {
+                val size = sizes[i]
+                check(size >= 0L)
+                if (size == 0L) {
+                    continue
+                }
+                val patch = ApkPatch(fromVersionCode, size)
+                patches[i] = patches[i]?.let { it + patch } ?: listOf(patch)
+            }
+        }
+        r.endObject()
+    }
+
+    return makeApkList(pkg,
+        names = apkNames,
+        hashes = checkNotNull(apkHashes) { "missing \"apkHashes\"" }.let { list ->
+            IntArray(list.size) { hashes.addHex(list[it]) }
+        },
+        sizes = checkNotNull(apkSizes) { "missing \"apkSizes\"" },
+        compressedSizes = compressedSizes,
+        compressedHashes = compressedHashes,
+        patches = patches,
+    )
+}
+
+private val emptyDependencyArray = emptyArray<Dependency>()
+
+private fun parseDependencies(list: List<String>?, repo: Repo): Array<Dependency>? {
+    return list?.map { Dependency.parse(it, repo) }?.toTypedArray()
+}
+
+// Used only for static deps. If it was used for dynamic deps, dependency resolution would become
+// too complex, especially during package updates.
+private class ComplexDependency(string: String) {
+    val lhs: String // left-hand-side
+    val op: String
+    val version: Long
+
+    init {
+        val tokens = string.split(" ")
+        lhs = tokens[0]
+        if (tokens.size == 1) {
+            op = ">="
+            version = 0
+        } else {
+            check(tokens.size == 3)
+            op = tokens[1]
+            version = tokens[2].toLong()
+        }
+    }
+
+    fun check(presentVersion: Long): Boolean {
+        return when (op) {
+            ">=" -> presentVersion >= version
+            "==" -> presentVersion == version
+            "<" -> presentVersion < version
+            else -> throw IllegalStateException(op)
+        }
+    }
+}
+
+// Constraints that are checked during repo parsing, before the package or its variant is parsed
+private class StaticConstraints {
+    var supportedDevices: List<String>? = null
+    var requiredSystemFeatures: List<String>? = null
+    var staticDeps: List<String>? = null
+
+    // returns false if the value of this property wasn't consumed
+    fun maybeRead(name: String, reader: Utf8JsonReader): Boolean {
+        when (name) {
+            "supportedDevices" -> supportedDevices = reader.nextStringList()
+            "requiredSystemFeatures" -> requiredSystemFeatures = reader.nextStringList()
+            "staticDeps" -> staticDeps = reader.nextStringList()
+            else -> return false
+        }
+        return true
+    }
+}
+
+private fun checkStaticDeps(constraints: StaticConstraints, dependentManifestPkgName: String, repo: Repo): Boolean {
+    constraints.supportedDevices?.let { devices ->
+        if (!devices.contains(Build.DEVICE)) {
+            return false
+        }
+    }
+
+    constraints.requiredSystemFeatures?.let { features ->
+        if (features.any { !checkSystemFeatureDep(ComplexDependency(it)) }) {
+            return false
+        }
+    }
+
+    constraints.staticDeps?.let { pkgDeps ->
+        for (depStr in pkgDeps) {
+            val dep = ComplexDependency(depStr)
+            // there's currently no certificate checks for static dependencies, require them to
+            // be a system package instead, unless it's our own package
+            val enforceSystemPkg = dep.lhs != selfPkgName
+            if (!checkPackageDep(dep, dependentManifestPkgName, repo, enforceSystemPkg)) {
+                return false
+            }
+        }
+    }
+
+    return true
+}
+
+private fun checkSystemFeatureDep(dep: ComplexDependency): Boolean {
+    val featureInfo: FeatureInfo = maybeGetSystemFeatureInfo(dep.lhs) ?: return false
+    return dep.check(featureInfo.version.toLong())
+}
+
+private fun checkPackageDep(dep: ComplexDependency, dependentManifestPkgName: String,
+                            repo: Repo, enforceSystemPkg: Boolean = false): Boolean {
+    val manifestPackageName = dep.lhs
+    val packageName = repo.translateManifestPackageName(manifestPackageName)
+    val pi = getPackageInfoForFiltering(repo, packageName) ?: return false
+    val appInfo = pi.applicationInfo ?: return false
+    if (!appInfo.enabled && manifestPackageName != dependentManifestPkgName) {
+        return false
+    }
+    if (enforceSystemPkg) {
+        if (appInfo.flags and ApplicationInfo.FLAG_SYSTEM == 0) {
+            return false
+        }
+    }
+    return dep.check(pi.longVersionCode)
+}
+
+// Result of repo filtering depends on the state of packages that are looked up here, record it
+// to be able to check whether the filtering result is still valid (see RepoIndex)
+private fun getPackageInfoForFiltering(repo: Repo, packageName: String): PackageInfo? {
+    val pi = InstalledPackageIndex.getPackageInfo(packageName)
+    // packages are filtered in parallel, see parallelMap()
+    synchronized(repo.filterInputs) {
+        repo.filterInputs.put(packageName, FilterInput.of(pi))
+    }
+    return pi
+}
+
+private fun shouldSkipRenamedPackages(): Boolean {
+    val buildIncremental: Long? = Build.VERSION.INCREMENTAL.toLongOrNull()
+    return buildIncremental != null
+            // updates of packages that were renamed by the original-package system cause a
+            // system_server crash on these versions.
+            // See https://github.com/GrapheneOS/platform_frameworks_base/commit/3fd0aaea464535b683a231bd92627056c2e02518
+            && buildIncremental > 2024_0303_00 && buildIncremental <= 2024_0311_00
+}
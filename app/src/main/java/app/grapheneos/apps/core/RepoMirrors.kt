@@ -0,0 +1,418 @@
+package app.grapheneos.apps.core
+
+import android.content.SharedPreferences
+import android.net.Network
+import android.os.SystemClock
+import android.util.Log
+import app.grapheneos.apps.R
+import app.grapheneos.apps.util.CONNECT_TIMEOUT_MS
+import app.grapheneos.apps.util.ScopedHttpConnection
+import app.grapheneos.apps.util.getSharedPreferences
+import app.grapheneos.apps.util.openConnection
+import app.grapheneos.apps.util.throwResponseCodeException
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.asExecutor
+import kotlinx.coroutines.channels.Channel
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.security.GeneralSecurityException
+import java.util.concurrent.atomic.AtomicBoolean
+
+// Sources of repo files: mirrors that are configured by the user (e.g. on-premise caches) and the
+// built-in repo (REPO_BASE_URL). Mirrors don't need to be trusted: repo metadata is signed and is
+// not allowed to go back in time (see storeRepo()), and everything else is verified against it
+// (APKs and patch results by their SHA-256, v4 and fsv_sig signatures by the OS). A mirror can only
+// withhold updates, and only as long as other sources fail too. Package icons aren't verified,
+// they are always loaded from the built-in repo.
+//
+// Mirrors are ranked by measured time to first byte and throughput, mirrors that weren't measured
+// yet are tried first, in the configured order. Requests fail over to the next mirror when a mirror
+// fails or stalls (see the read timeout in openConnection()), failed mirror is deprioritized for a
+// backoff period that grows with the number of its consecutive failures.
+//
+// Requests for metadata and small files are hedged: if the best-ranked mirror doesn't respond within
+// its p95 time to first byte, the same request is sent to the next mirror, and the first response
+// wins. Slow responses are rare, which makes the added load small, and they no longer determine
+// the tail latency, which is otherwise bounded only by connection timeouts.
+//
+// Safe to access from any thread.
+object RepoMirrors {
+    private const val TAG = "RepoMirrors"
+
+    private const val MIN_THROUGHPUT_SAMPLE_SIZE = 256 * 1024L
+    // size that is used for comparing mirrors with different latency and throughput
+    private const val TYPICAL_FILE_SIZE = 4 * 1024 * 1024L
+    private const val BACKOFF_BASE_MS = 30_000L
+    private const val BACKOFF_MAX_MS = 30 * 60_000L
+    // weight of the new sample in exponential moving averages
+    private const val EWMA_WEIGHT = 0.3
+
+    // files that are larger than this are not worth the cost of a duplicate request
+    const val HEDGING_MAX_SIZE = 4 * 1024 * 1024L
+    private const val TTFB_SAMPLES = 32
+    private const val MIN_TTFB_SAMPLES_FOR_HEDGING = 8
+    // used until enough TTFB samples are collected
+    private const val DEFAULT_HEDGE_DELAY_MS = 1000L
+    private const val MIN_HEDGE_DELAY_MS = 50L
+
+    class Mirror internal constructor(val baseUrl: String) {
+        // all fields below are guarded by RepoMirrors
+        internal var ttfbMs = -1.0
+        // ring buffer of recent TTFB samples, for estimating TTFB percentiles
+        internal val ttfbSamples = LongArray(TTFB_SAMPLES)
+        internal var ttfbSampleCount = 0
+        // bytes per millisecond
+        internal var throughput = -1.0
+        internal var consecutiveFailures = 0
+        internal var backoffUntil = 0L
+
+        fun url(path: String) = "$baseUrl/$path"
+
+        override fun toString() = baseUrl
+    }
+
+    private val prefs = getSharedPreferences(R.string.pref_file_settings)
+    private val prefKey = appResources.getString(R.string.pref_key_repo_mirrors)
+
+    // runs blocking hedged requests, see connectHedged()
+    private val hedgingExecutor = Dispatchers.IO.asExecutor()
+
+    @Volatile
+    private var mirrors: List<Mirror> = parseMirrors(emptyList())
+
+    // note that listener must be strongly referenced to work
+    private val prefsListener = SharedPreferences.OnSharedPreferenceChangeListener { _, key ->
+        if (key == prefKey) {
+            mirrors = parseMirrors(mirrors)
+        }
+    }
+
+    init {
+        prefs.registerOnSharedPreferenceChangeListener(prefsListener)
+    }
+
+    // Mirrors are separated by whitespace, only HTTPS mirrors are supported. Measurements of
+    // mirrors that remain configured are preserved
+    private fun parseMirrors(prev: List<Mirror>): List<Mirror> {
+        val urls = (prefs.getString(prefKey, null) ?: "")
+            .split(Regex("\\s+"))
+            .map { it.trimEnd('/') }
+            .filter {
+                it.isNotEmpty() && it.startsWith("https://").also { isValid ->
+                    if (!isValid) {
+                        Log.w(TAG, "ignored mirror $it, only HTTPS mirrors are supported")
+                    }
+                }
+            }
+        return (urls + REPO_BASE_URL).distinct().map { url ->
+            prev.find { it.baseUrl == url } ?: Mirror(url)
+        }
+    }
+
+    fun ranked(): List<Mirror> {
+        val now = SystemClock.elapsedRealtime()
+        synchronized(this) {
+            // sort is stable, which preserves the configured order of unmeasured mirrors
+            return mirrors.sortedWith(compareBy<Mirror> { it.backoffUntil > now }.thenBy { estimatedCost(it) })
+        }
+    }
+
+    private fun estimatedCost(m: Mirror): Double {
+        if (m.ttfbMs < 0.0) {
+            return 0.0
+        }
+        if (m.throughput <= 0.0) {
+            return m.ttfbMs
+        }
+        return m.ttfbMs + TYPICAL_FILE_SIZE / m.throughput
+    }
+
+    // Runs block with each of the mirrors in ranked order until it succeeds. IOException (which
+    // includes unexpected HTTP response codes, see throwResponseCodeException()) and
+    // GeneralSecurityException cause failover to the next mirror. Exception of the last mirror is
+    // rethrown if all of them fail
+    inline fun <T> withFailover(mirrors: List<Mirror> = ranked(), block: (Mirror) -> T): T {
+        for ((i, mirror) in mirrors.withIndex()) {
+            val e: Exception = try {
+                val res = block(mirror)
+                onSuccess(mirror)
+                return res
+            } catch (e: IOException) {
+                e
+            } catch (e: GeneralSecurityException) {
+                e
+            }
+            onFailure(mirror, e)
+            if (i == mirrors.size - 1) {
+                throw e
+            }
+        }
+        throw IllegalStateException("no mirrors")
+    }
+
+    // Sends the request to path on the mirror and waits for the response headers
+    fun connect(mirror: Mirror, network: Network?, path: String,
+                configure: HttpURLConnection.() -> Unit): ScopedHttpConnection {
+        val start = SystemClock.elapsedRealtime()
+        val conn = openConnection(network, mirror.url(path), configure)
+        try {
+            conn.responseCode
+        } catch (e: IOException) {
+            conn.close()
+            throw e
+        }
+        onResponse(mirror, SystemClock.elapsedRealtime() - start)
+        return conn
+    }
+
+    // Connects to the best-ranked mirror with a HEAD request for the metadata, which is requested
+    // by all clients and doesn't reveal which package is about to be downloaded. Connection is then
+    // kept in the connection pool (see ScopedHttpConnection), which allows the next request to skip
+    // TCP and TLS handshakes
+    fun prewarm(network: Network?) {
+        val mirror = ranked().first()
+        try {
+            connect(mirror, network, METADATA_PATH) {
+                requestMethod = "HEAD"
+            }.close()
+        } catch (e: IOException) {
+            Log.d(TAG, "unable to prewarm connection to $mirror", e)
+        }
+    }
+
+    // Connects to the first mirror that responds with one of expectedResponseCodes. Once the
+    // response body is being read, failures can't be failed over.
+    // If hedge is true, the first attempt is hedged, see connectHedged()
+    suspend fun connectWithFailover(network: Network?, path: String, vararg expectedResponseCodes: Int,
+                                    hedge: Boolean = false,
+                                    configure: HttpURLConnection.() -> Unit = {}): ScopedHttpConnection {
+        var mirrors = ranked()
+        if (hedge) {
+            val res = connectHedged(network, path, configure)
+            res.conn?.let { conn ->
+                val mirror = res.mirror!!
+                if (conn.responseCode in expectedResponseCodes) {
+                    onSuccess(mirror)
+                    return conn
+                }
+                val e = try {
+                    conn.use { throwResponseCodeException(it.v) }
+                } catch (e: IOException) {
+                    e
+                }
+                onFailure(mirror, e)
+                if (res.remaining.isEmpty()) {
+                    throw e
+                }
+            }
+            mirrors = res.remaining
+        }
+        return withFailover(mirrors) { mirror ->
+            val conn = connect(mirror, network, path, configure)
+            if (conn.responseCode !in expectedResponseCodes) {
+                conn.use { throwResponseCodeException(it.v) }
+            }
+            conn
+        }
+    }
+
+    // Same as withFailover(), except that block receives the connection to the mirror. Response body
+    // can be verified inside block, verification failure (GeneralSecurityException) fails over to
+    // the next mirror.
+    // If hedge is true, the first attempt is hedged, see connectHedged()
+    suspend inline fun <T> withConnectionFailover(network: Network?, path: String, hedge: Boolean,
+                                                  noinline configure: HttpURLConnection.() -> Unit,
+                                                  block: (Mirror, ScopedHttpConnection) -> T): T {
+        if (!hedge) {
+            return withFailover { mirror ->
+                connect(mirror, network, path, configure).use { block(mirror, it) }
+            }
+        }
+        val res = connectHedged(network, path, configure)
+        res.conn?.let { conn ->
+            val mirror = res.mirror!!
+            val e: Exception = try {
+                val v = conn.use { block(mirror, it) }
+                onSuccess(mirror)
+                return v
+            } catch (e: IOException) {
+                e
+            } catch (e: GeneralSecurityException) {
+                e
+            }
+            onFailure(mirror, e)
+            if (res.remaining.isEmpty()) {
+                throw e
+            }
+        }
+        return withFailover(res.remaining) { mirror ->
+            connect(mirror, network, path, configure).use { block(mirror, it) }
+        }
+    }
+
+    // conn is null if hedged attempts failed, remaining are the mirrors that weren't tried yet or
+    // whose attempt was abandoned
+    class HedgedConnection(val mirror: Mirror?, val conn: ScopedHttpConnection?, val remaining: List<Mirror>)
+
+    // Sends the request to the best-ranked mirror, and to the next one if the first one doesn't
+    // respond within its hedge delay or fails. Returns the connection that received its response
+    // headers first, the other one is closed when it completes. Server errors (5xx) aren't counted
+    // as responses.
+    // Failures are recorded, success is not: the response code and the body still have to be checked
+    // by the caller.
+    // Waiting for responses is cancellable, requests that are in flight are then abandoned
+    suspend fun connectHedged(network: Network?, path: String,
+                              configure: HttpURLConnection.() -> Unit): HedgedConnection {
+        val mirrors = ranked()
+        if (mirrors.size == 1) {
+            // nothing to hedge with
+            val mirror = mirrors[0]
+            val conn = try {
+                connect(mirror, network, path, configure)
+            } catch (e: IOException) {
+                onFailure(mirror, e)
+                throw e
+            }
+            return HedgedConnection(mirror, conn, emptyList())
+        }
+        val candidates = mirrors.take(2)
+        // null means that the hedge delay has elapsed. Connections that aren't received (e.g. due to
+        // cancellation) are closed
+        val results = Channel<Pair<Mirror, Any>?>(Channel.UNLIMITED, onUndeliveredElement = {
+            (it?.second as? ScopedHttpConnection)?.close()
+        })
+        val isClaimed = AtomicBoolean()
+
+        fun start(mirror: Mirror) {
+            hedgingExecutor.execute {
+                val res: Any = try {
+                    val conn = connect(mirror, network, path, configure)
+                    if (conn.responseCode >= 500) {
+                        conn.use { throwResponseCodeException(it.v) }
+                    }
+                    if (!isClaimed.compareAndSet(false, true)) {
+                        // response of the other mirror was received first
+                        conn.close()
+                        return@execute
+                    }
+                    conn
+                } catch (e: IOException) {
+                    onFailure(mirror, e)
+                    e
+                } catch (e: RuntimeException) {
+                    e
+                }
+                if (results.trySend(Pair(mirror, res)).isFailure) {
+                    // caller was cancelled
+                    (res as? ScopedHttpConnection)?.close()
+                }
+            }
+        }
+
+        start(candidates[0])
+        val hedgeTimer = Runnable { results.trySend(null) }
+        mainHandler.postDelayed(hedgeTimer, hedgeDelay(candidates[0]))
+        try {
+            return awaitHedged(mirrors, candidates, results, ::start)
+        } catch (e: CancellationException) {
+            // responses that arrive later are closed by their senders
+            isClaimed.set(true)
+            results.cancel()
+            throw e
+        } finally {
+            mainHandler.removeCallbacks(hedgeTimer)
+        }
+    }
+
+    private suspend fun awaitHedged(mirrors: List<Mirror>, candidates: List<Mirror>,
+                                    results: Channel<Pair<Mirror, Any>?>,
+                                    start: (Mirror) -> Unit): HedgedConnection {
+        var started = 1
+        val finished = ArrayList<Mirror>(candidates.size)
+        var lastException: Exception? = null
+
+        while (finished.size != started) {
+            val res = results.receive()
+
+            if (res == null) {
+                if (started < candidates.size) {
+                    Log.d(TAG, "no response from ${candidates[0]} within hedge delay, sending hedged request")
+                    start(candidates[started++])
+                }
+                continue
+            }
+            val (mirror, v) = res
+            finished.add(mirror)
+
+            if (v is ScopedHttpConnection) {
+                // request to the other mirror is still in flight and its result will be discarded,
+                // keep it available for failover
+                val losers = candidates.take(started).filter { it !in finished }
+                return HedgedConnection(mirror, v, losers + mirrors.drop(started))
+            }
+            lastException = v as Exception
+            if (started < candidates.size) {
+                // first mirror failed before the hedge delay, try the next one right away
+                start(candidates[started++])
+            }
+        }
+
+        val remaining = mirrors.drop(started)
+        if (remaining.isEmpty()) {
+            throw lastException!!
+        }
+        return HedgedConnection(null, null, remaining)
+    }
+
+    private fun hedgeDelay(mirror: Mirror): Long {
+        synchronized(this) {
+            val count = minOf(mirror.ttfbSampleCount, TTFB_SAMPLES)
+            if (count < MIN_TTFB_SAMPLES_FOR_HEDGING) {
+                return DEFAULT_HEDGE_DELAY_MS
+            }
+            val samples = mirror.ttfbSamples.copyOf(count)
+            samples.sort()
+            val p95 = samples[((count - 1) * 95) / 100]
+            return p95.coerceIn(MIN_HEDGE_DELAY_MS, CONNECT_TIMEOUT_MS.toLong())
+        }
+    }
+
+    private fun onResponse(mirror: Mirror, ttfbMs: Long) {
+        synchronized(this) {
+            mirror.ttfbMs = ewma(mirror.ttfbMs, ttfbMs.toDouble())
+            mirror.ttfbSamples[mirror.ttfbSampleCount % TTFB_SAMPLES] = ttfbMs
+            ++mirror.ttfbSampleCount
+        }
+    }
+
+    // should be called after a response body of a successful request is read
+    fun onTransferCompleted(mirror: Mirror, bytes: Long, durationMs: Long) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE_SIZE || durationMs <= 0L) {
+            return
+        }
+        synchronized(this) {
+            mirror.throughput = ewma(mirror.throughput, bytes.toDouble() / durationMs)
+        }
+    }
+
+    fun onSuccess(mirror: Mirror) {
+        synchronized(this) {
+            mirror.consecutiveFailures = 0
+            mirror.backoffUntil = 0L
+        }
+    }
+
+    fun onFailure(mirror: Mirror, e: Exception) {
+        Log.d(TAG, "request to $mirror failed", e)
+        synchronized(this) {
+            val n = ++mirror.consecutiveFailures
+            val backoff = minOf(BACKOFF_BASE_MS shl minOf(n - 1, 10), BACKOFF_MAX_MS)
+            mirror.backoffUntil = SystemClock.elapsedRealtime() + backoff
+        }
+    }
+
+    private fun ewma(prev: Double, sample: Double): Double {
+        return if (prev < 0.0) sample else prev + (sample - prev) * EWMA_WEIGHT
+    }
+}
@@ -1,23 +1,30 @@
 package app.grapheneos.apps.core;
 
+import android.util.Log
 import app.grapheneos.apps.BuildConfig
 import app.grapheneos.apps.util.AtomicFile2
-import app.grapheneos.apps.util.openConnection
-import app.grapheneos.apps.util.readByteArray
+import app.grapheneos.apps.util.ScopedHttpConnection
 import app.grapheneos.apps.util.readString
 import app.grapheneos.apps.util.throwResponseCodeException
 import app.grapheneos.apps.util.writeByteArray
 import app.grapheneos.apps.util.writeString
-import org.json.JSONObject
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.DataInputStream
 import java.io.DataOutputStream
+import java.io.IOException
 import java.net.HttpURLConnection
+import java.net.HttpURLConnection.HTTP_NOT_FOUND
 import java.net.HttpURLConnection.HTTP_NOT_MODIFIED
 import java.net.HttpURLConnection.HTTP_OK
 import java.nio.charset.StandardCharsets.UTF_8
 import java.security.GeneralSecurityException
+import java.security.MessageDigest
+import java.util.zip.GZIPInputStream
 
 private const val METADATA_VERSION = 1
 private const val CACHE_FILE_VERSION = 1
@@ -26,80 +33,262 @@ private const val MIN_TIMESTAMP = 1_770_000_000L
 private const val PUBLIC_KEY = BuildConfig.REPO_PUBLIC_KEY
 private const val KEY_VERSION = BuildConfig.REPO_KEY_VERSION
 
+private const val TAG = "RepoRetriever"
+
+// Limit on the size of metadata JSON, checked before the signature is verified. Metadata is
+// buffered in memory, and a mirror is not trusted to not send an endless or highly compressible
+// response
+private const val MAX_METADATA_SIZE = 64 shl 20
+// Content-Length is not trusted either, it's only a hint for the size of the initial buffer
+private const val MAX_INITIAL_BUFFER_SIZE = 16 shl 20
+
+// path of the uncompressed full metadata, relative to the repo base URL
+const val METADATA_PATH = "metadata.$METADATA_VERSION.$KEY_VERSION.sjson"
+
 private val cacheFile = AtomicFile2("repo")
 
-fun fetchRepo(currentRepo: Repo): Repo {
-    val url = "$REPO_BASE_URL/metadata.$METADATA_VERSION.$KEY_VERSION.sjson"
+// Guards the metadata cache file and the repo index, which is derived from it. Generation is
+// incremented on each write of the cache file to prevent a stale index rebuild from overwriting
+// a newer index
+private val cacheLock = Any()
+private var cacheGeneration = 0
+
+// Range of a byte array that contains verified metadata JSON
+class RepoJson(val bytes: ByteArray, val offset: Int = 0, val end: Int = bytes.size) {
+    fun sha256(): ByteArray {
+        val md = MessageDigest.getInstance("SHA-256")
+        md.update(bytes, offset, end - offset)
+        return md.digest()
+    }
+}
+
+suspend fun fetchRepo(currentRepo: Repo): Repo {
+    if (currentRepo.isDummy) {
+        return fetchFullRepo(null, MIN_TIMESTAMP)
+    }
+
+    // in case MIN_TIMESTAMP was updated
+    val minTimestamp = maxOf(currentRepo.timestamp, MIN_TIMESTAMP)
 
-    return if (!currentRepo.isDummy) {
-        openConnection(null, url) {
+    // conditional HEAD request skips the delta request when metadata is unchanged
+    val eTag = fetchFullRepoETag(currentRepo) ?: return currentRepo
+
+    fetchDelta(currentRepo, eTag, minTimestamp)?.let {
+        return it
+    }
+    return fetchFullRepo(currentRepo, minTimestamp)
+}
+
+// Returns null if full metadata wasn't modified since currentRepo was fetched, otherwise ETag of
+// the latest full metadata, or an empty string if it's unknown. That ETag is stored along with the
+// metadata that is produced by a delta. If metadata is updated after this request, stored ETag is
+// older than the stored metadata, which only costs a redundant fetch later, never a false 304
+private suspend fun fetchFullRepoETag(currentRepo: Repo): String? {
+    val configure: HttpURLConnection.() -> Unit = {
+        requestMethod = "HEAD"
+        if (currentRepo.eTag.isNotEmpty()) {
             setRequestProperty("If-None-Match", currentRepo.eTag)
-        }.use { conn ->
-            when (conn.v.responseCode) {
-                HTTP_OK -> {
-                    fetchInner(conn.v,
-                        // in case MIN_TIMESTAMP was updated
-                        maxOf(currentRepo.timestamp, MIN_TIMESTAMP))
-                }
-                HTTP_NOT_MODIFIED -> {
-                    currentRepo
-                }
-                else -> throwResponseCodeException(conn.v)
+        }
+    }
+
+    fun readETag(conn: ScopedHttpConnection): String? = when (conn.responseCode) {
+        HTTP_OK -> conn.v.getHeaderField("ETag") ?: ""
+        HTTP_NOT_MODIFIED -> null
+        else -> throwResponseCodeException(conn.v)
+    }
+
+    // same paths as in fetchFullRepo(), ETag of either of them might be stored
+    return try {
+        RepoMirrors.withConnectionFailover(null, "$METADATA_PATH.gz", hedge = true, configure) { mirror, conn ->
+            if (conn.responseCode == HTTP_NOT_FOUND) {
+                RepoMirrors.connect(mirror, null, METADATA_PATH, configure).use { readETag(it) }
+            } else {
+                readETag(conn)
             }
         }
-    } else {
-        openConnection(null, url, {}).use { conn ->
-            if (conn.v.responseCode != HTTP_OK) {
-                throwResponseCodeException(conn.v)
+    } catch (e: IOException) {
+        // not fatal, metadata is fetched without it
+        Log.d(TAG, "unable to fetch ETag of repo metadata", e)
+        ""
+    }
+}
+
+// Full metadata is fetched in gzip-compressed form, deltas are small enough to not need it. Mirrors
+// that don't provide the compressed form are asked for the uncompressed one.
+// Metadata from a mirror that is behind is rejected by storeRepo(), which fails over to the next
+// mirror
+private suspend fun fetchFullRepo(currentRepo: Repo?, minTimestamp: Long): Repo {
+    val configure: HttpURLConnection.() -> Unit = {
+        val eTag = currentRepo?.eTag
+        if (!eTag.isNullOrEmpty()) {
+            setRequestProperty("If-None-Match", eTag)
+        }
+    }
+
+    return RepoMirrors.withConnectionFailover(null, "$METADATA_PATH.gz", hedge = true, configure) { mirror, conn ->
+        if (conn.responseCode == HTTP_NOT_FOUND) {
+            Log.d(TAG, "no compressed metadata on $mirror")
+            RepoMirrors.connect(mirror, null, METADATA_PATH, configure).use {
+                readFullRepo(it, isGzipped = false, currentRepo, minTimestamp)
             }
+        } else {
+            readFullRepo(conn, isGzipped = true, currentRepo, minTimestamp)
+        }
+    }
+}
 
-            fetchInner(conn.v, MIN_TIMESTAMP)
+private suspend fun readFullRepo(conn: ScopedHttpConnection, isGzipped: Boolean, currentRepo: Repo?,
+                                 minTimestamp: Long): Repo {
+    return when (conn.responseCode) {
+        HTTP_OK -> {
+            val eTag = conn.v.getHeaderField("ETag") ?: ""
+            storeRepo(readSignedJson(conn, isGzipped), eTag, minTimestamp)
+        }
+        HTTP_NOT_MODIFIED -> {
+            currentRepo ?: throwResponseCodeException(conn.v)
         }
+        else -> throwResponseCodeException(conn.v)
     }
 }
 
-private fun fetchInner(conn: HttpURLConnection, minTimestamp: Long): Repo {
-    val eTag = conn.getHeaderField("ETag") ?: ""
+// Fetches a delta from the cached metadata to the latest metadata and applies it to the cached
+// metadata. Returns null if the delta chain is broken (delta for the cached metadata isn't
+// available, or doesn't apply to it), in which case full metadata should be fetched instead.
+// eTag is stored as the ETag of the resulting metadata, see fetchFullRepoETag()
+private suspend fun fetchDelta(currentRepo: Repo, eTag: String, minTimestamp: Long): Repo? {
+    val base = readCachedJson()?.second ?: return null
+
+    val path = "metadata.$METADATA_VERSION.$KEY_VERSION.delta.${currentRepo.timestamp}.sjson"
+
+    // failure to fetch the delta isn't fatal, full metadata is fetched instead
+    val delta = try {
+        RepoMirrors.withConnectionFailover(null, path, hedge = true, {}) { mirror, conn ->
+            when (conn.responseCode) {
+                HTTP_OK -> readSignedJson(conn)
+                HTTP_NOT_FOUND -> {
+                    Log.d(TAG, "no delta for ${currentRepo.timestamp} on $mirror")
+                    return null
+                }
+                else -> throwResponseCodeException(conn.v)
+            }
+        }
+    } catch (e: IOException) {
+        Log.d(TAG, "unable to fetch repo delta", e)
+        return null
+    } catch (e: GeneralSecurityException) {
+        Log.w(TAG, "unable to fetch repo delta", e)
+        return null
+    }
+
+    val json = try {
+        applyRepoDelta(delta, base, currentRepo.timestamp)
+    } catch (e: Exception) {
+        Log.w(TAG, "unable to apply repo delta", e)
+        null
+    } ?: return null
 
-    val unverifiedBytes = conn.inputStream.use {
-        it.readBytes()
+    if (json === base) {
+        return currentRepo
     }
 
+    return storeRepo(json, eTag, minTimestamp)
+}
+
+// Signed JSON is verified while it's being read (and decompressed, if it's compressed), without
+// buffering the whole response body first
+private fun readSignedJson(conn: ScopedHttpConnection, isGzipped: Boolean = false): RepoJson {
     // format:
     // JSON as UTF-8 string
     // 1 byte of newline
     // 100 bytes of base64 encoded signature (its real size is 74 bytes)
     // 1 byte of newline
+    val trailerSize = 102
+
+    val verifier = FileVerifier(PUBLIC_KEY).StreamingVerifier()
+
+    val maxLen = MAX_METADATA_SIZE + trailerSize
+    val expectedLen = conn.v.contentLengthLong.coerceAtLeast(0L) * (if (isGzipped) 4 else 1)
+    var buf = ByteArray(expectedLen.coerceAtMost(MAX_INITIAL_BUFFER_SIZE.toLong()).toInt() + trailerSize)
+    var len = 0
+    // bytes before this offset were supplied to the verifier
+    var verifiedLen = 0
+
+    val rawStream = conn.inputStream
+    val stream = if (isGzipped) GZIPInputStream(rawStream) else rawStream
+    stream.use {
+        while (true) {
+            if (len == buf.size) {
+                if (len == maxLen) {
+                    throw IOException("metadata is larger than $MAX_METADATA_SIZE bytes")
+                }
+                buf = buf.copyOf(maxOf(buf.size * 2, 1 shl 16).coerceAtMost(maxLen))
+            }
+            val n = it.read(buf, len, buf.size - len)
+            if (n < 0) {
+                break
+            }
+            len += n
 
-    val unverifiedJson: ByteArray = unverifiedBytes.copyOfRange(0, unverifiedBytes.size - 102)
-    val signature: String =
-        unverifiedBytes.copyOfRange(unverifiedBytes.size - 101, unverifiedBytes.size - 1)
-            .toString(UTF_8)
+            // the last trailerSize bytes may turn out to be the signature trailer, hold them back
+            val verifiableLen = len - trailerSize
+            if (verifiableLen > verifiedLen) {
+                verifier.update(buf, verifiedLen, verifiableLen - verifiedLen)
+                verifiedLen = verifiableLen
+            }
+        }
+    }
+
+    val jsonLength = len - trailerSize
+    if (jsonLength < 0) {
+        throw GeneralSecurityException("signed file is too short")
+    }
+    check(verifiedLen == jsonLength)
 
-    FileVerifier(PUBLIC_KEY).verifySignature(unverifiedJson, signature)
+    val signature = String(buf, len - 101, 100, UTF_8)
+    verifier.verify(signature)
 
-    val verifiedJson = unverifiedJson
+    // JSON is parsed in place, without copying it out of the read buffer
+    return RepoJson(buf, 0, jsonLength)
+}
 
-    val repo = Repo(JSONObject(verifiedJson.toString(UTF_8)), eTag)
+private suspend fun storeRepo(json: RepoJson, eTag: String, minTimestamp: Long): Repo {
+    val repo = parseRepoJson(json.bytes, json.offset, json.end, eTag)
 
     if (repo.timestamp < minTimestamp) {
         throw GeneralSecurityException("repo downgrade")
     }
 
-    val baos = ByteArrayOutputStream(verifiedJson.size + 100)
+    val jsonLength = json.end - json.offset
+    val baos = ByteArrayOutputStream(jsonLength + 100)
     DataOutputStream(baos).let {
         it.writeInt(CACHE_FILE_VERSION)
         it.writeString(eTag)
-        it.writeByteArray(verifiedJson)
+        it.writeByteArray(json.bytes, json.offset, jsonLength)
     }
 
-    cacheFile.write(baos.toByteArray())
+    synchronized(cacheLock) {
+        // stale index must not outlive the metadata it was derived from
+        deleteRepoIndex()
+        cacheFile.write(baos.toByteArray())
+        ++cacheGeneration
+        writeRepoIndexOrLog(repo)
+    }
 
     return repo
 }
 
-fun getCachedRepo(): Repo {
-    val bytes = cacheFile.read() ?: return createDummy()
+private fun writeRepoIndexOrLog(repo: Repo) {
+    try {
+        writeRepoIndex(repo)
+    } catch (e: Exception) {
+        // repo index is an optimization, metadata cache will be parsed instead
+        Log.w(TAG, "unable to write repo index", e)
+    }
+}
+
+// Returns eTag and JSON of the cached metadata
+private fun readCachedJson(): Pair<String, RepoJson>? {
+    val bytes = cacheFile.read() ?: return null
 
     val dis = DataInputStream(ByteArrayInputStream(bytes))
     val fileVersion = dis.readInt()
@@ -107,17 +296,45 @@ fun getCachedRepo(): Repo {
 
     val eTag = dis.readString()
 
-    val json = dis.readByteArray().toString(UTF_8)
-    check(dis.available() == 0)
+    val jsonLength = dis.readInt()
+    check(jsonLength == dis.available())
+    // JSON is parsed in place, without copying it out of the cache file buffer
+    val jsonOffset = bytes.size - jsonLength
 
-    return Repo(JSONObject(json), eTag)
+    return Pair(eTag, RepoJson(bytes, jsonOffset, jsonOffset + jsonLength))
 }
 
-// make a dummy repo to remove the need to check for null Repo everywhere
-private fun createDummy(): Repo {
-    val jo = JSONObject().apply {
-        put("time", MIN_TIMESTAMP)
-        put("packages", JSONObject())
+// Blocking, it's called during initialization of PackageStates
+fun getCachedRepo(): Repo = runBlocking {
+    readCachedRepo()
+}
+
+private suspend fun readCachedRepo(): Repo {
+    val generation: Int
+    val cached: Pair<String, RepoJson>?
+    synchronized(cacheLock) {
+        readRepoIndex()?.let { return it }
+        generation = cacheGeneration
+        cached = readCachedJson()
     }
-    return Repo(jo, eTag = "", isDummy = true)
+
+    val (eTag, json) = cached ?: return createDummy()
+    val repo = parseRepoJson(json.bytes, json.offset, json.end, eTag)
+
+    // index is missing or invalid, rebuild it for the next app launch
+    CoroutineScope(Dispatchers.IO).launch {
+        synchronized(cacheLock) {
+            if (cacheGeneration == generation) {
+                writeRepoIndexOrLog(repo)
+            }
+        }
+    }
+
+    return repo
+}
+
+// make a dummy repo to remove the need to check for null Repo everywhere
+private suspend fun createDummy(): Repo {
+    val json = """{"time":$MIN_TIMESTAMP,"packages":{}}""".toByteArray(UTF_8)
+    return parseRepoJson(json, 0, json.size, eTag = "", isDummy = true)
 }
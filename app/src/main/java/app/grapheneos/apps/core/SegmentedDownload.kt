@@ -0,0 +1,296 @@
+package app.grapheneos.apps.core
+
+import android.os.SystemClock
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants.O_CREAT
+import android.system.OsConstants.O_RDWR
+import android.system.OsConstants.O_TRUNC
+import android.system.OsConstants.S_IRUSR
+import android.system.OsConstants.S_IWUSR
+import android.util.Log
+import app.grapheneos.apps.util.BufferPool
+import app.grapheneos.apps.util.ScopedFileDescriptor
+import app.grapheneos.apps.util.megabytes
+import app.grapheneos.apps.util.throwResponseCodeException
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.launch
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileDescriptor
+import java.net.HttpURLConnection.HTTP_PARTIAL
+import java.util.concurrent.atomic.AtomicLong
+
+// Downloads a file as several byte ranges that are fetched concurrently over separate connections
+// and are written into the same file descriptor with positional writes. Single connection underuses
+// the available bandwidth on high-latency links.
+//
+// Progress of each segment is persisted in the state file, which allows to resume all segments
+// of an interrupted download, not just its contiguous prefix. State file is written only after
+// the data it refers to is synced, which means that it may lag behind the file contents, but never
+// runs ahead of them.
+//
+// Segment that fails is resumed from its current position on the next mirror, see RepoMirrors.
+class SegmentedDownload(
+    private val params: InstallParams,
+    // see DownloadScheduler.withPermit()
+    private val owner: Any,
+    // relative to the repo base URL
+    private val path: String,
+    private val fd: FileDescriptor,
+    private val fullSize: Long,
+    private val statePath: String,
+    private val job: Job,
+    private val progress: AtomicLong,
+) {
+    // segment i covers [starts[i], ends[i]), positions[i] is the offset of its first missing byte.
+    // positions are guarded by this
+    private val starts: LongArray
+    private val ends: LongArray
+    private val positions: LongArray
+
+    // guarded by this
+    private var bytesSinceStateWrite = 0L
+    // serializes state file writes, which sync to storage, without holding the lock of positions
+    private val stateWriteLock = Any()
+    // mirrors that served data of this download, guarded by this
+    private val mirrorsUsed = LinkedHashSet<RepoMirrors.Mirror>()
+
+    init {
+        val segments = readState() ?: run {
+            // new download, discard leftover file contents, if any
+            Os.ftruncate(fd, 0L)
+            Os.ftruncate(fd, fullSize)
+            makeSegments()
+        }
+
+        starts = segments[0]
+        ends = segments[1]
+        positions = segments[2]
+
+        progress.getAndAdd(downloadedSize())
+    }
+
+    fun downloadedSize(): Long {
+        synchronized(this) {
+            return positions.indices.sumOf { positions[it] - starts[it] }
+        }
+    }
+
+    suspend fun run() {
+        try {
+            writeState()
+            coroutineScope {
+                for (i in starts.indices) {
+                    if (positions[i] == ends[i]) {
+                        continue
+                    }
+                    launch {
+                        downloadSegment(i)
+                    }
+                }
+            }
+        } finally {
+            try {
+                writeState()
+            } catch (e: Exception) {
+                // state file is an optimization, download will be restarted from scratch
+                Log.d(TAG, "unable to write state of $path", e)
+            }
+        }
+    }
+
+    // see InstallTask.onVerificationFailure()
+    fun mirrorsUsed(): List<RepoMirrors.Mirror> {
+        synchronized(this) {
+            return mirrorsUsed.toList()
+        }
+    }
+
+    // should be called after the file is fully downloaded and moved out of the way, or if it turned
+    // out to be invalid
+    fun deleteState() {
+        File(statePath).delete()
+    }
+
+    private suspend fun downloadSegment(i: Int) {
+        val end = ends[i]
+
+        DownloadScheduler.withPermit(params.network, params.priority, owner) { transfer ->
+            RepoMirrors.withFailover { mirror ->
+                val start = synchronized(this) { positions[i] }
+                if (start == end) {
+                    // previous mirror failed after sending the whole segment
+                    return@withFailover
+                }
+
+                RepoMirrors.connect(mirror, params.network, path) {
+                    setRequestProperty("Accept-Encoding", "identity")
+                    // end of the range is inclusive
+                    addRequestProperty("Range", "bytes=$start-${end - 1}")
+                }.use { conn ->
+                    job.ensureActive()
+
+                    if (conn.responseCode != HTTP_PARTIAL) {
+                        throwResponseCodeException(conn.v)
+                    }
+                    transfer.onResponse()
+
+                    val startTime = SystemClock.elapsedRealtime()
+                    var pos = start
+
+                    BufferPool.withBuffer(BufferPool.Size.NETWORK) { buf ->
+                    DownloadThrottle.wrap(conn.inputStream, params, job, transfer).use { input ->
+                        while (pos != end) {
+                            job.ensureActive()
+                            val len = input.read(buf, 0, minOf(buf.size.toLong(), end - pos).toInt())
+                            if (len < 0) {
+                                throw EOFException("unexpected end of segment $i of $path at $pos from $mirror")
+                            }
+
+                            job.ensureActive()
+                            pwriteFully(buf, len, pos)
+                            pos += len
+                            progress.addAndGet(len.toLong())
+                            transfer.bytes += len
+
+                            val shouldWriteState = synchronized(this) {
+                                mirrorsUsed.add(mirror)
+                                positions[i] = pos
+                                bytesSinceStateWrite += len
+                                bytesSinceStateWrite >= STATE_WRITE_INTERVAL
+                            }
+                            if (shouldWriteState) {
+                                writeState()
+                            }
+                        }
+                    }}
+                    RepoMirrors.onTransferCompleted(mirror, end - start, SystemClock.elapsedRealtime() - startTime)
+                }
+            }
+        }
+    }
+
+    private fun pwriteFully(buf: ByteArray, len: Int, offset: Long) {
+        var written = 0
+        while (written != len) {
+            val ret = Os.pwrite(fd, buf, written, len - written, offset + written)
+            check(ret > 0 && ret <= len - written)
+            written += ret
+        }
+    }
+
+    private fun makeSegments(): Array<LongArray> {
+        val count = (fullSize / MIN_SEGMENT_SIZE).coerceIn(1L, MAX_SEGMENTS.toLong()).toInt()
+        val segmentSize = fullSize / count
+
+        val starts = LongArray(count) { it * segmentSize }
+        val ends = LongArray(count) { if (it == count - 1) fullSize else (it + 1) * segmentSize }
+        return arrayOf(starts, ends, starts.copyOf())
+    }
+
+    private fun readState(): Array<LongArray>? {
+        // file might have been removed or recreated by the OS, see InstallTask.apksDir
+        if (Os.fstat(fd).st_size != fullSize) {
+            return null
+        }
+
+        val bytes = try {
+            File(statePath).readBytes()
+        } catch (e: Exception) {
+            return null
+        }
+
+        try {
+            val s = DataInputStream(ByteArrayInputStream(bytes))
+            if (s.readInt() != STATE_FILE_VERSION || s.readLong() != fullSize) {
+                return null
+            }
+            val count = s.readInt()
+            if (count < 1 || count > MAX_SEGMENTS) {
+                return null
+            }
+            val starts = LongArray(count)
+            val ends = LongArray(count)
+            val positions = LongArray(count)
+            var prevEnd = 0L
+            for (i in 0 until count) {
+                starts[i] = s.readLong()
+                ends[i] = s.readLong()
+                positions[i] = s.readLong()
+                if (starts[i] != prevEnd || positions[i] < starts[i] || positions[i] > ends[i]) {
+                    return null
+                }
+                prevEnd = ends[i]
+            }
+            if (prevEnd != fullSize) {
+                return null
+            }
+            return arrayOf(starts, ends, positions)
+        } catch (e: Exception) {
+            Log.d(TAG, "invalid state file $statePath", e)
+            return null
+        }
+    }
+
+    @Throws(ErrnoException::class)
+    private fun writeState() {
+        synchronized(stateWriteLock) {
+            // segments keep downloading while the state is written. Snapshots are taken in order,
+            // older state never overwrites a newer one
+            val snapshot = synchronized(this) {
+                bytesSinceStateWrite = 0L
+                positions.copyOf()
+            }
+
+            // state must not refer to data that isn't durable yet. Data up to the snapshot
+            // positions was written before they were recorded
+            Os.fdatasync(fd)
+
+            val baos = ByteArrayOutputStream(16 + snapshot.size * 24)
+            DataOutputStream(baos).let {
+                it.writeInt(STATE_FILE_VERSION)
+                it.writeLong(fullSize)
+                it.writeInt(snapshot.size)
+                for (i in snapshot.indices) {
+                    it.writeLong(starts[i])
+                    it.writeLong(ends[i])
+                    it.writeLong(snapshot[i])
+                }
+            }
+            val bytes = baos.toByteArray()
+
+            val tmpPath = "$statePath.tmp"
+            val flags = O_RDWR or O_CREAT or O_TRUNC
+            ScopedFileDescriptor(Os.open(tmpPath, flags, S_IRUSR or S_IWUSR)).use {
+                var written = 0
+                while (written != bytes.size) {
+                    val ret = Os.write(it.v, bytes, written, bytes.size - written)
+                    check(ret > 0)
+                    written += ret
+                }
+                Os.fsync(it.v)
+            }
+            Os.rename(tmpPath, statePath)
+        }
+    }
+
+    companion object {
+        private const val TAG = "SegmentedDownload"
+        private const val STATE_FILE_VERSION = 1
+
+        // files smaller than this are downloaded over a single connection
+        val MIN_SIZE = 32.megabytes
+        private val MIN_SEGMENT_SIZE = 8.megabytes
+        private const val MAX_SEGMENTS = 4
+        private val STATE_WRITE_INTERVAL = 4.megabytes
+
+        fun isUsefulFor(apk: Apk) = apk.compressedSize >= MIN_SIZE
+    }
+}
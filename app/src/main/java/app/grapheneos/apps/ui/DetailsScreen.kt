@@ -23,6 +23,7 @@ import androidx.navigation.fragment.findNavController
 import androidx.navigation.fragment.navArgs
 import app.grapheneos.apps.PackageStates
 import app.grapheneos.apps.R
+import app.grapheneos.apps.core.ApkPrefetch
 import app.grapheneos.apps.core.DependencyResolutionException
 import app.grapheneos.apps.core.PackageState
 import app.grapheneos.apps.core.PkgInstallerStatusReceiver
@@ -42,6 +43,10 @@ import app.grapheneos.apps.util.isSystemPackage
 import app.grapheneos.apps.util.isUpdatedSystemPackage
 import app.grapheneos.apps.util.maybeSetText
 import app.grapheneos.apps.util.setAvailable
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
 
 class DetailsScreen : ViewBindingFragment<DetailsScreenBinding>(), MenuProvider {
     private lateinit var pkgState: PackageState
@@ -102,6 +107,33 @@ class DetailsScreen : ViewBindingFragment<DetailsScreenBinding>(), MenuProvider
         }
     }
 
+    private var speculativePrefetchJob: Job? = null
+
+    override fun onStart() {
+        super.onStart()
+
+        if (!::pkgState.isInitialized) {
+            return
+        }
+        when (pkgState.status()) {
+            PackageState.Status.NOT_INSTALLED,
+            PackageState.Status.OUT_OF_DATE -> {
+                val rPackage = pkgState.rPackage
+                speculativePrefetchJob = CoroutineScope(Dispatchers.Main).launch {
+                    ApkPrefetch.prefetchSpeculatively(rPackage)
+                }
+            }
+            else -> {}
+        }
+    }
+
+    override fun onStop() {
+        super.onStop()
+        // data that was already downloaded is kept, see ApkPrefetch.prefetchSpeculatively()
+        speculativePrefetchJob?.cancel()
+        speculativePrefetchJob = null
+    }
+
     private fun bindViews(pkgState: PackageState) {
         val views = views()
         val status = pkgState.status()
@@ -10,6 +10,7 @@ import androidx.fragment.app.viewModels
 import androidx.lifecycle.ViewModel
 import app.grapheneos.apps.PackageStates
 import app.grapheneos.apps.R
+import app.grapheneos.apps.core.DownloadPriority
 import app.grapheneos.apps.core.InstallParams
 import app.grapheneos.apps.core.PackageState
 import app.grapheneos.apps.core.collectOutdatedPackageGroups
@@ -54,7 +55,8 @@ class UpdatesScreen : PackageListFragment<UpdatesScreenBinding>(), MenuProvider
             CoroutineScope(Dispatchers.Main).launch {
                 val outdatedPackageGroups = collectOutdatedPackageGroups()
                 if (outdatedPackageGroups.isNotEmpty()) {
-                    val installParams = InstallParams(network = null, isUserInitiated = true, isUpdate = true)
+                    val installParams = InstallParams(network = null, isUserInitiated = true, isUpdate = true,
+                        priority = DownloadPriority.USER_BULK_UPDATE)
                     val jobs = startPackageUpdate(installParams, outdatedPackageGroups)
                     model.cancelableJobs = jobs
                     PackageStates.dispatchAllStatesChanged()
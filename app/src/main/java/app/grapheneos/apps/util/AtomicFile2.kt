@@ -34,6 +34,13 @@ class AtomicFile2(name: String) {
         }
     }
 
+    fun delete() {
+        synchronized(file) {
+            // removal is made durable by the directory fsync that is performed by the next write
+            file.delete()
+        }
+    }
+
     private fun writeInner(bytes: ByteArray) {
         val flags = OsConstants.O_RDWR or OsConstants.O_CREAT or
                 // in case there's a leftover file from previous failed write
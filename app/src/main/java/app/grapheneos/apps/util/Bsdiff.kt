@@ -0,0 +1,162 @@
+package app.grapheneos.apps.util
+
+import android.system.Os
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.ensureActive
+import java.io.BufferedInputStream
+import java.io.DataInputStream
+import java.io.FileDescriptor
+import java.io.InputStream
+import java.io.OutputStream
+
+// Format of patches that are produced by bsdiff from AOSP (external/bsdiff) with --format=bsdf2.
+//
+// Header:
+// "BSDF2"
+// 3 bytes: compression type of control, diff and extra streams
+// offtin: size of control stream
+// offtin: size of diff stream
+// offtin: size of the new file
+// Header is followed by control, diff and extra streams.
+//
+// Control stream is a sequence of (diff size, extra size, old file offset increment) offtin triples.
+// For each triple, diff size bytes of the diff stream are added bytewise to the old file at the
+// current old offset, then extra size bytes of the extra stream are copied as is.
+//
+// offtin is a 64-bit sign-magnitude little-endian integer
+private const val HEADER_SIZE = 32
+private const val COMPRESSION_NONE = 0
+
+// Applies a BSDF2 patch to the contents of oldFd and writes the new file of newSize bytes into out.
+// Only patches with uncompressed streams are supported, patch as a whole is expected to be
+// compressed for transport.
+// Patch isn't trusted: it's validated only to the extent needed to not read or write out of bounds
+// and to not produce a file of unexpected size, contents of the new file have to be verified by
+// the caller
+fun applyBsdf2Patch(oldFd: FileDescriptor, patchFd: FileDescriptor, out: OutputStream,
+                    expectedNewSize: Long, job: Job) {
+    val oldSize = Os.fstat(oldFd).st_size
+    val patchSize = Os.fstat(patchFd).st_size
+    check(patchSize >= HEADER_SIZE) { "patch is too short" }
+
+    val header = ByteArray(HEADER_SIZE)
+    preadFully(patchFd, header, HEADER_SIZE, 0L)
+    check(String(header, 0, 5, Charsets.US_ASCII) == "BSDF2") { "unknown patch format" }
+    for (i in 5 until 8) {
+        check(header[i].toInt() == COMPRESSION_NONE) { "unsupported compression of patch stream ${i - 5}" }
+    }
+
+    val ctrlSize = readOfftin(header, 8)
+    val diffSize = readOfftin(header, 16)
+    val newSize = readOfftin(header, 24)
+    check(ctrlSize >= 0L && diffSize >= 0L && newSize >= 0L)
+    check(newSize == expectedNewSize) { "unexpected size of the new file: $newSize" }
+    check(ctrlSize <= patchSize - HEADER_SIZE && diffSize <= patchSize - HEADER_SIZE - ctrlSize)
+
+    val diffStart = HEADER_SIZE + ctrlSize
+    val extraStart = diffStart + diffSize
+
+    val ctrl = DataInputStream(BufferedInputStream(PreadInputStream(patchFd, HEADER_SIZE.toLong(), diffStart)))
+    val diff = DataInputStream(PreadInputStream(patchFd, diffStart, extraStart))
+    val extra = DataInputStream(PreadInputStream(patchFd, extraStart, patchSize))
+
+    val ctrlEntry = ByteArray(24)
+    val buf = ByteArray(64 * 1024)
+    val oldBuf = ByteArray(buf.size)
+
+    var newPos = 0L
+    var oldPos = 0L
+
+    while (newPos != newSize) {
+        job.ensureActive()
+
+        ctrl.readFully(ctrlEntry)
+        val entryDiffSize = readOfftin(ctrlEntry, 0)
+        val entryExtraSize = readOfftin(ctrlEntry, 8)
+        val oldPosIncrement = readOfftin(ctrlEntry, 16)
+        check(entryDiffSize >= 0L && entryDiffSize <= newSize - newPos)
+        check(entryExtraSize >= 0L && entryExtraSize <= newSize - newPos - entryDiffSize)
+
+        var remaining = entryDiffSize
+        while (remaining != 0L) {
+            job.ensureActive()
+            val len = minOf(remaining, buf.size.toLong()).toInt()
+            diff.readFully(buf, 0, len)
+            readOld(oldFd, oldSize, oldPos, oldBuf, len)
+            for (i in 0 until len) {
+                buf[i] = (buf[i] + oldBuf[i]).toByte()
+            }
+            out.write(buf, 0, len)
+            oldPos += len
+            remaining -= len
+        }
+
+        remaining = entryExtraSize
+        while (remaining != 0L) {
+            job.ensureActive()
+            val len = minOf(remaining, buf.size.toLong()).toInt()
+            extra.readFully(buf, 0, len)
+            out.write(buf, 0, len)
+            remaining -= len
+        }
+
+        // old offset may point outside of the old file, but shouldn't overflow
+        check(oldPosIncrement > Long.MIN_VALUE / 4 && oldPosIncrement < Long.MAX_VALUE / 4)
+        oldPos += oldPosIncrement
+        check(oldPos > Long.MIN_VALUE / 4 && oldPos < Long.MAX_VALUE / 4)
+        newPos += entryDiffSize + entryExtraSize
+    }
+}
+
+// Reads len bytes of the old file at pos, bytes that are outside of the old file are read as zeros
+private fun readOld(fd: FileDescriptor, size: Long, pos: Long, buf: ByteArray, len: Int) {
+    buf.fill(0, 0, len)
+    val start = pos.coerceIn(0L, size)
+    val end = (pos + len).coerceIn(0L, size)
+    if (start < end) {
+        val off = (start - pos).toInt()
+        preadFully(fd, buf, (end - start).toInt(), start, off)
+    }
+}
+
+private fun preadFully(fd: FileDescriptor, buf: ByteArray, len: Int, pos: Long, off: Int = 0) {
+    var read = 0
+    while (read != len) {
+        val ret = Os.pread(fd, buf, off + read, len - read, pos + read)
+        check(ret > 0) { "unexpected end of file" }
+        read += ret
+    }
+}
+
+private fun readOfftin(buf: ByteArray, off: Int): Long {
+    var v = buf[off + 7].toLong() and 0x7f
+    for (i in 6 downTo 0) {
+        v = (v shl 8) or (buf[off + i].toLong() and 0xff)
+    }
+    return if (buf[off + 7] < 0) -v else v
+}
+
+// Reads [pos, end) range of the file with positional reads, which allows to read several ranges
+// of the same file descriptor concurrently
+private class PreadInputStream(private val fd: FileDescriptor, private var pos: Long,
+                               private val end: Long) : InputStream() {
+    override fun read(): Int {
+        val b = ByteArray(1)
+        return if (read(b, 0, 1) < 0) -1 else b[0].toInt() and 0xff
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) {
+            return 0
+        }
+        if (pos == end) {
+            return -1
+        }
+        val ret = Os.pread(fd, b, off, minOf(len.toLong(), end - pos).toInt(), pos)
+        if (ret == 0) {
+            return -1
+        }
+        pos += ret
+        return ret
+    }
+}
@@ -0,0 +1,49 @@
+package app.grapheneos.apps.util
+
+// Reusable buffers for copy loops. Bulk updates run many copies concurrently (downloads, decoding,
+// session writes), allocating a new buffer for each of them creates a lot of GC churn, especially
+// for large buffers.
+//
+// Safe to access from any thread.
+object BufferPool {
+    enum class Size(val bytes: Int, val maxRetained: Int) {
+        // network reads rarely return more than the socket receive buffer holds
+        NETWORK(64 * 1024, 8),
+        // local file and session copies, larger buffers reduce the number of syscalls, which is
+        // important for session writes that go through a FileBridge pipe
+        FILE(256 * 1024, 4),
+    }
+
+    // guarded by this
+    private val pools = Array(Size.entries.size) { ArrayList<ByteArray>() }
+
+    fun acquire(size: Size): ByteArray {
+        synchronized(this) {
+            val pool = pools[size.ordinal]
+            if (pool.isNotEmpty()) {
+                return pool.removeAt(pool.size - 1)
+            }
+        }
+        return ByteArray(size.bytes)
+    }
+
+    // buffer shouldn't be accessed after it's released
+    fun release(size: Size, buf: ByteArray) {
+        check(buf.size == size.bytes)
+        synchronized(this) {
+            val pool = pools[size.ordinal]
+            if (pool.size < size.maxRetained) {
+                pool.add(buf)
+            }
+        }
+    }
+
+    inline fun <T> withBuffer(size: Size, block: (ByteArray) -> T): T {
+        val buf = acquire(size)
+        try {
+            return block(buf)
+        } finally {
+            release(size, buf)
+        }
+    }
+}
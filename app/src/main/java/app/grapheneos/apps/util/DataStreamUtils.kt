@@ -12,11 +12,37 @@ fun DataInputStream.readByteArray(): ByteArray {
     return arr
 }
 
-fun DataOutputStream.writeByteArray(arr: ByteArray) {
-    writeInt(arr.size)
-    write(arr)
+fun DataOutputStream.writeByteArray(arr: ByteArray, off: Int = 0, len: Int = arr.size) {
+    writeInt(len)
+    write(arr, off, len)
 }
 
 fun DataInputStream.readString() = readByteArray().toString(UTF_8)
 
 fun DataOutputStream.writeString(s: String) = writeByteArray(s.toByteArray(UTF_8))
+
+fun DataInputStream.readNullableString(): String? = if (readBoolean()) readString() else null
+
+fun DataOutputStream.writeNullableString(s: String?) {
+    writeBoolean(s != null)
+    if (s != null) {
+        writeString(s)
+    }
+}
+
+fun DataInputStream.readStringList(): List<String> {
+    val len = readInt()
+    if (len == 0) {
+        return emptyList()
+    }
+    val list = ArrayList<String>(len)
+    repeat(len) {
+        list.add(readString())
+    }
+    return list
+}
+
+fun DataOutputStream.writeStringList(list: List<String>) {
+    writeInt(list.size)
+    list.forEach { writeString(it) }
+}
@@ -1,14 +1,23 @@
 package app.grapheneos.apps.util
 
 import android.net.Network
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
 import java.net.HttpURLConnection
 import java.net.ProtocolException
 import java.net.URL
 import javax.net.ssl.HttpsURLConnection
 import org.grapheneos.tls.ModernTLSSocketFactory
 
+// Connections are pooled by HttpURLConnection per address, which includes the SSLSocketFactory
+// instance, so the same instance has to be used for all connections for them to be reused.
+// Each Network has its own connection pool, idle connections are evicted by the pool after the
+// keep-alive duration
 private val tlsSocketFactory = ModernTLSSocketFactory()
 
+const val CONNECT_TIMEOUT_MS = 10_000
+
 fun openConnection(network: Network?, urlString: String, configure: HttpURLConnection.() -> Unit): ScopedHttpConnection {
     val url = URL(urlString)
     val connection = if (network != null) {
@@ -19,7 +28,7 @@ fun openConnection(network: Network?, urlString: String, configure: HttpURLConne
 
     connection.apply {
         sslSocketFactory = tlsSocketFactory
-        connectTimeout = 10_000
+        connectTimeout = CONNECT_TIMEOUT_MS
         readTimeout = 30_000
     }
 
@@ -28,9 +37,124 @@ fun openConnection(network: Network?, urlString: String, configure: HttpURLConne
     return ScopedHttpConnection(connection)
 }
 
+// Connection is returned to the keep-alive pool when its response body is fully read and closed.
+// Response code and body should be accessed through this class instead of through v, to allow it
+// to determine whether that's possible
 class ScopedHttpConnection(val v: HttpURLConnection) : AutoCloseable {
+    private var hasResponse = false
+    private var body: BodyInputStream? = null
+
+    val responseCode: Int
+        get() = v.responseCode.also { hasResponse = true }
+
+    val inputStream: InputStream
+        get() = body ?: BodyInputStream(v.inputStream).also {
+            hasResponse = true
+            body = it
+        }
+
     override fun close() {
-        v.disconnect()
+        if (!maybeReleaseToPool()) {
+            // closes the socket
+            v.disconnect()
+        }
+    }
+
+    private fun maybeReleaseToPool(): Boolean {
+        if (!hasResponse) {
+            // request might not have been sent yet
+            return false
+        }
+
+        try {
+            val body = body
+            if (body == null) {
+                // response body wasn't read, e.g. due to an unexpected response code
+                val stream = if (v.responseCode >= 400) v.errorStream else v.inputStream
+                // Content-Length of a bodyless response describes the resource, not the response
+                val remaining = if (hasNoBody()) 0L else v.contentLengthLong
+                return stream?.use { drain(it, remaining) } ?: true
+            }
+
+            body.use {
+                if (it.isAtEnd) {
+                    return true
+                }
+                if (it.isClosed) {
+                    // unread remainder of the body was already discarded by the stream
+                    return false
+                }
+                val contentLength = v.contentLengthLong
+                return drain(it, if (contentLength < 0L) -1L else contentLength - it.bytesRead)
+            }
+        } catch (e: IOException) {
+            return false
+        }
+    }
+
+    private fun hasNoBody(): Boolean {
+        val code = v.responseCode
+        return v.requestMethod == "HEAD" || code in 100 until 200
+                || code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_NOT_MODIFIED
+    }
+
+    // Draining a small remainder of the body is cheaper than a new connection. Large remainders
+    // are not drained, to not delay cancellation of downloads. remaining is -1 if it's unknown
+    private fun drain(stream: InputStream, remaining: Long): Boolean {
+        if (remaining > MAX_DRAIN_SIZE) {
+            return false
+        }
+        val buf = ByteArray(DEFAULT_BUFFER_SIZE)
+        var total = 0L
+        while (true) {
+            val n = stream.read(buf)
+            if (n < 0) {
+                return true
+            }
+            total += n
+            if (total > MAX_DRAIN_SIZE) {
+                return false
+            }
+        }
+    }
+
+    private class BodyInputStream(stream: InputStream) : FilterInputStream(stream) {
+        var bytesRead = 0L; private set
+        var isAtEnd = false; private set
+        var isClosed = false; private set
+
+        override fun read(): Int {
+            val b = super.read()
+            if (b < 0) {
+                isAtEnd = true
+            } else {
+                ++bytesRead
+            }
+            return b
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            val n = super.read(b, off, len)
+            if (n < 0) {
+                isAtEnd = true
+            } else {
+                bytesRead += n
+            }
+            return n
+        }
+
+        override fun skip(n: Long): Long {
+            return super.skip(n).also { bytesRead += it }
+        }
+
+        override fun close() {
+            isClosed = true
+            super.close()
+        }
+    }
+
+    companion object {
+        private const val MAX_DRAIN_SIZE = 64 * 1024L
     }
 }
 
@@ -0,0 +1,41 @@
+package app.grapheneos.apps.util
+
+import android.os.SystemClock
+
+// Token bucket rate limiter for blocking I/O. Consumers that exceed the rate go into debt and wait
+// until it's repaid, which keeps the aggregate rate of all consumers at or below the limit.
+//
+// Safe to access from any thread.
+class TokenBucket(rateBytesPerSecond: Long) {
+    // 0 means "unlimited"
+    @Volatile
+    var rate = rateBytesPerSecond
+
+    // guarded by this
+    private var tokens = 0.0
+    private var lastRefillNanos = SystemClock.elapsedRealtimeNanos()
+
+    // Returns for how long the consumer should wait before continuing, in milliseconds
+    fun consume(n: Long): Long {
+        val rate = this.rate
+        if (rate <= 0L) {
+            return 0L
+        }
+
+        val deficit: Double
+        synchronized(this) {
+            val now = SystemClock.elapsedRealtimeNanos()
+            // allow bursts of up to 250 ms worth of tokens
+            val capacity = rate / 4.0
+            tokens = minOf(capacity, tokens + (now - lastRefillNanos) * rate / 1e9)
+            lastRefillNanos = now
+            tokens -= n
+            deficit = -tokens
+        }
+
+        if (deficit <= 0.0) {
+            return 0L
+        }
+        return (deficit * 1000.0 / rate).toLong()
+    }
+}
@@ -0,0 +1,451 @@
+package app.grapheneos.apps.util
+
+import android.util.ArrayMap
+import java.nio.charset.StandardCharsets.UTF_8
+
+// Pull-style JSON parser that reads UTF-8 encoded JSON directly from a byte array.
+// Unlike org.json, it doesn't build a DOM of the whole document, and unlike android.util.JsonReader,
+// it doesn't decode the whole input into chars and exposes positions of values, which allows to
+// re-read a part of the document later with a separate reader.
+//
+// Only the subset of JSON that is used by the repo metadata is supported fully: fractional numbers
+// can only be skipped.
+class Utf8JsonReader(private val buf: ByteArray, offset: Int = 0, private val end: Int = buf.size) {
+    var pos: Int = offset; private set
+
+    private var stack = IntArray(16)
+    private var stackSize = 0
+    private var peeked: Token? = null
+
+    init {
+        require(offset >= 0 && offset <= end && end <= buf.size)
+        push(SCOPE_EMPTY_DOCUMENT)
+    }
+
+    enum class Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT,
+    }
+
+    fun peek(): Token {
+        return peeked ?: doPeek().also { peeked = it }
+    }
+
+    fun hasNext(): Boolean {
+        val t = peek()
+        return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT
+    }
+
+    fun beginObject() {
+        consume(Token.BEGIN_OBJECT)
+        push(SCOPE_EMPTY_OBJECT)
+    }
+
+    fun endObject() {
+        consume(Token.END_OBJECT)
+        --stackSize
+    }
+
+    fun beginArray() {
+        consume(Token.BEGIN_ARRAY)
+        push(SCOPE_EMPTY_ARRAY)
+    }
+
+    fun endArray() {
+        consume(Token.END_ARRAY)
+        --stackSize
+    }
+
+    fun nextName(): String {
+        consume(Token.NAME)
+        return readString()
+    }
+
+    fun nextString(): String {
+        consume(Token.STRING)
+        return readString()
+    }
+
+    fun nextBoolean(): Boolean {
+        consume(Token.BOOLEAN)
+        return if (matchLiteral("true")) {
+            true
+        } else if (matchLiteral("false")) {
+            false
+        } else {
+            syntaxError("invalid literal")
+        }
+    }
+
+    fun nextNull() {
+        consume(Token.NULL)
+        if (!matchLiteral("null")) {
+            syntaxError("invalid literal")
+        }
+    }
+
+    fun nextLong(): Long {
+        consume(Token.NUMBER)
+        val start = pos
+        var negative = false
+        if (buf[pos] == '-'.code.toByte()) {
+            negative = true
+            ++pos
+        }
+        var res = 0L
+        var numDigits = 0
+        while (pos < end) {
+            val digit = buf[pos] - '0'.code.toByte()
+            if (digit < 0 || digit > 9) {
+                break
+            }
+            // accumulate as a negative number to be able to represent Long.MIN_VALUE
+            if (res < (Long.MIN_VALUE + digit) / 10) {
+                throw NumberFormatException("number is too large at offset $start")
+            }
+            res = res * 10 - digit
+            ++numDigits
+            ++pos
+        }
+        if (numDigits == 0) {
+            syntaxError("invalid number")
+        }
+        if (pos < end) {
+            when (buf[pos].toInt()) {
+                '.'.code, 'e'.code, 'E'.code ->
+                    throw NumberFormatException("fractional numbers are not supported, offset $start")
+            }
+        }
+        if (negative) {
+            return res
+        }
+        if (res == Long.MIN_VALUE) {
+            throw NumberFormatException("number is too large at offset $start")
+        }
+        return -res
+    }
+
+    fun nextInt(): Int {
+        val v = nextLong()
+        if (v < Int.MIN_VALUE || v > Int.MAX_VALUE) {
+            throw NumberFormatException("$v doesn't fit into Int")
+        }
+        return v.toInt()
+    }
+
+    // Returns offset of the next value. It can be passed to newReaderAt() to read this value again
+    // later, independently from this reader
+    fun nextValueOffset(): Int {
+        return when (peek()) {
+            // opening bracket is consumed by peek()
+            Token.BEGIN_OBJECT, Token.BEGIN_ARRAY -> pos - 1
+            Token.STRING, Token.NUMBER, Token.BOOLEAN, Token.NULL -> pos
+            else -> syntaxError("expected value")
+        }
+    }
+
+    fun newReaderAt(offset: Int) = Utf8JsonReader(buf, offset, end)
+
+    // Skips the next value, including all of its nested values, without decoding it
+    fun skipValue() {
+        var depth = 0
+        do {
+            when (peek()) {
+                Token.BEGIN_OBJECT -> {
+                    beginObject()
+                    ++depth
+                }
+                Token.BEGIN_ARRAY -> {
+                    beginArray()
+                    ++depth
+                }
+                Token.END_OBJECT -> {
+                    endObject()
+                    --depth
+                }
+                Token.END_ARRAY -> {
+                    endArray()
+                    --depth
+                }
+                Token.NAME -> {
+                    consume(Token.NAME)
+                    skipString()
+                }
+                Token.STRING -> {
+                    consume(Token.STRING)
+                    skipString()
+                }
+                Token.NUMBER -> {
+                    consume(Token.NUMBER)
+                    while (pos < end && isNumberChar(buf[pos].toInt())) {
+                        ++pos
+                    }
+                }
+                Token.BOOLEAN -> nextBoolean()
+                Token.NULL -> nextNull()
+                Token.END_DOCUMENT -> syntaxError("unexpected end of document")
+            }
+        } while (depth != 0)
+    }
+
+    fun nextStringList(): List<String> {
+        beginArray()
+        if (!hasNext()) {
+            endArray()
+            return emptyList()
+        }
+        val list = ArrayList<String>()
+        while (hasNext()) {
+            list.add(nextString())
+        }
+        endArray()
+        return list
+    }
+
+    fun nextLongList(): LongArray {
+        beginArray()
+        var arr = LongArray(8)
+        var len = 0
+        while (hasNext()) {
+            if (len == arr.size) {
+                arr = arr.copyOf(len * 2)
+            }
+            arr[len++] = nextLong()
+        }
+        endArray()
+        return if (len == arr.size) arr else arr.copyOf(len)
+    }
+
+    fun nextStringMap(): Map<String, String> {
+        val map = ArrayMap<String, String>()
+        beginObject()
+        while (hasNext()) {
+            val key = nextName()
+            map.put(key, nextString())
+        }
+        endObject()
+        return map
+    }
+
+    private fun consume(expected: Token) {
+        val t = peek()
+        if (t != expected) {
+            syntaxError("expected $expected but was $t")
+        }
+        peeked = null
+    }
+
+    private fun push(scope: Int) {
+        if (stackSize == stack.size) {
+            stack = stack.copyOf(stackSize * 2)
+        }
+        stack[stackSize++] = scope
+    }
+
+    private fun doPeek(): Token {
+        val top = stackSize - 1
+        when (stack[top]) {
+            SCOPE_EMPTY_ARRAY -> {
+                stack[top] = SCOPE_NONEMPTY_ARRAY
+                if (nextNonWhitespace() == ']'.code) {
+                    ++pos
+                    return Token.END_ARRAY
+                }
+            }
+            SCOPE_NONEMPTY_ARRAY -> {
+                when (nextNonWhitespace()) {
+                    ']'.code -> {
+                        ++pos
+                        return Token.END_ARRAY
+                    }
+                    ','.code -> ++pos
+                    else -> syntaxError("unterminated array")
+                }
+            }
+            SCOPE_EMPTY_OBJECT, SCOPE_NONEMPTY_OBJECT -> {
+                if (stack[top] == SCOPE_EMPTY_OBJECT) {
+                    if (nextNonWhitespace() == '}'.code) {
+                        ++pos
+                        return Token.END_OBJECT
+                    }
+                } else {
+                    when (nextNonWhitespace()) {
+                        '}'.code -> {
+                            ++pos
+                            return Token.END_OBJECT
+                        }
+                        ','.code -> ++pos
+                        else -> syntaxError("unterminated object")
+                    }
+                }
+                stack[top] = SCOPE_DANGLING_NAME
+                if (nextNonWhitespace() != '"'.code) {
+                    syntaxError("expected name")
+                }
+                return Token.NAME
+            }
+            SCOPE_DANGLING_NAME -> {
+                stack[top] = SCOPE_NONEMPTY_OBJECT
+                if (nextNonWhitespace() != ':'.code) {
+                    syntaxError("expected ':'")
+                }
+                ++pos
+            }
+            SCOPE_EMPTY_DOCUMENT -> stack[top] = SCOPE_NONEMPTY_DOCUMENT
+            SCOPE_NONEMPTY_DOCUMENT -> {
+                if (nextNonWhitespace() == -1) {
+                    return Token.END_DOCUMENT
+                }
+                syntaxError("unexpected data after the end of document")
+            }
+        }
+
+        return when (nextNonWhitespace()) {
+            '{'.code -> {
+                ++pos
+                Token.BEGIN_OBJECT
+            }
+            '['.code -> {
+                ++pos
+                Token.BEGIN_ARRAY
+            }
+            '"'.code -> Token.STRING
+            't'.code, 'f'.code -> Token.BOOLEAN
+            'n'.code -> Token.NULL
+            '-'.code, in '0'.code..'9'.code -> Token.NUMBER
+            -1 -> syntaxError("unexpected end of input")
+            else -> syntaxError("unexpected character")
+        }
+    }
+
+    // returns the next non-whitespace byte without consuming it, or -1 if end of input is reached
+    private fun nextNonWhitespace(): Int {
+        while (pos < end) {
+            when (val c = buf[pos].toInt()) {
+                ' '.code, '\t'.code, '\n'.code, '\r'.code -> ++pos
+                else -> return c
+            }
+        }
+        return -1
+    }
+
+    private fun matchLiteral(literal: String): Boolean {
+        val len = literal.length
+        if (end - pos < len) {
+            return false
+        }
+        for (i in 0 until len) {
+            if (buf[pos + i].toInt() != literal[i].code) {
+                return false
+            }
+        }
+        pos += len
+        return true
+    }
+
+    private fun isNumberChar(c: Int): Boolean {
+        return (c >= '0'.code && c <= '9'.code) || c == '-'.code || c == '+'.code
+                || c == '.'.code || c == 'e'.code || c == 'E'.code
+    }
+
+    private fun skipString() {
+        // skip opening quote
+        ++pos
+        while (pos < end) {
+            when (buf[pos++].toInt()) {
+                '"'.code -> return
+                '\\'.code -> ++pos
+            }
+        }
+        syntaxError("unterminated string")
+    }
+
+    private fun readString(): String {
+        // skip opening quote
+        val start = ++pos
+        while (pos < end) {
+            when (buf[pos].toInt()) {
+                '"'.code -> {
+                    // common case: string without escape sequences is decoded directly, without
+                    // intermediate copies
+                    val s = String(buf, start, pos - start, UTF_8)
+                    ++pos
+                    return s
+                }
+                '\\'.code -> return readEscapedString(start)
+            }
+            ++pos
+        }
+        syntaxError("unterminated string")
+    }
+
+    private fun readEscapedString(start: Int): String {
+        val sb = StringBuilder()
+        var chunkStart = start
+        while (pos < end) {
+            when (buf[pos].toInt()) {
+                '"'.code -> {
+                    sb.append(String(buf, chunkStart, pos - chunkStart, UTF_8))
+                    ++pos
+                    return sb.toString()
+                }
+                '\\'.code -> {
+                    sb.append(String(buf, chunkStart, pos - chunkStart, UTF_8))
+                    ++pos
+                    if (pos >= end) {
+                        break
+                    }
+                    when (val c = buf[pos++].toInt()) {
+                        'u'.code -> {
+                            if (end - pos < 4) {
+                                syntaxError("invalid escape sequence")
+                            }
+                            var v = 0
+                            for (i in 0 until 4) {
+                                val digit = Character.digit(buf[pos++].toInt(), 16)
+                                if (digit < 0) {
+                                    syntaxError("invalid escape sequence")
+                                }
+                                v = (v shl 4) or digit
+                            }
+                            sb.append(v.toChar())
+                        }
+                        'b'.code -> sb.append('\b')
+                        'f'.code -> sb.append('\u000c')
+                        'n'.code -> sb.append('\n')
+                        'r'.code -> sb.append('\r')
+                        't'.code -> sb.append('\t')
+                        '"'.code, '\\'.code, '/'.code -> sb.append(c.toChar())
+                        else -> syntaxError("invalid escape sequence")
+                    }
+                    chunkStart = pos
+                    continue
+                }
+            }
+            ++pos
+        }
+        syntaxError("unterminated string")
+    }
+
+    private fun syntaxError(msg: String): Nothing {
+        throw IllegalStateException("JSON syntax error at offset $pos: $msg")
+    }
+
+    companion object {
+        private const val SCOPE_EMPTY_DOCUMENT = 0
+        private const val SCOPE_NONEMPTY_DOCUMENT = 1
+        private const val SCOPE_EMPTY_ARRAY = 2
+        private const val SCOPE_NONEMPTY_ARRAY = 3
+        private const val SCOPE_EMPTY_OBJECT = 4
+        private const val SCOPE_DANGLING_NAME = 5
+        private const val SCOPE_NONEMPTY_OBJECT = 6
+    }
+}
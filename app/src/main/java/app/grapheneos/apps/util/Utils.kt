@@ -20,12 +20,15 @@ import app.grapheneos.apps.core.userManager
 import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.ensureActive
-import org.json.JSONArray
 import java.io.DataInputStream
 import java.io.DataOutputStream
+import java.io.FilterInputStream
+import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 import java.nio.charset.StandardCharsets.UTF_8
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicLong
 import kotlin.coroutines.coroutineContext
 
@@ -37,25 +40,150 @@ fun checkNotMainThread() {
     check(Thread.currentThread() !== mainThread)
 }
 
-// a variant of kotlin.io.copyTo that checks for job cancellation and publishes progress updates
-fun InputStream.copyTo2(out: OutputStream, job: Job, progress: AtomicLong? = null, bufSize: Int = 16 * 1024): Long {
-    val buf = ByteArray(bufSize)
+// a variant of kotlin.io.copyTo that checks for job cancellation and publishes progress updates.
+// Progress updates are batched, progress is fully published when the copy completes or fails
+fun InputStream.copyTo2(out: OutputStream, job: Job, progress: AtomicLong? = null,
+                        bufSize: BufferPool.Size = BufferPool.Size.NETWORK): Long {
     var total = 0L
+    var unpublishedProgress = 0L
+
+    job.ensureActive()
+    try {
+        BufferPool.withBuffer(bufSize) { buf ->
+            var bufLen = this.read(buf)
+            while (bufLen >= 0) {
+                // read() might have blocked for a long time
+                job.ensureActive()
+                out.write(buf, 0, bufLen)
+                total += bufLen
+
+                if (progress != null) {
+                    unpublishedProgress += bufLen
+                    if (unpublishedProgress >= PROGRESS_BATCH_SIZE) {
+                        progress.addAndGet(unpublishedProgress)
+                        unpublishedProgress = 0L
+                    }
+                }
+
+                bufLen = this.read(buf)
+            }
+        }
+    } finally {
+        if (unpublishedProgress != 0L) {
+            progress?.addAndGet(unpublishedProgress)
+        }
+    }
+    return total
+}
+
+// progress is displayed as a percentage of sizes that are usually megabytes or larger
+private const val PROGRESS_BATCH_SIZE = 256 * 1024L
 
-    while (true) {
-        job.ensureActive()
-        val bufLen = this.read(buf)
-        if (bufLen < 0) {
-            break
+// Writes all bytes that are read from the stream into out and publishes progress updates
+class TeeInputStream(stream: InputStream, private val out: OutputStream,
+                     private val progress: AtomicLong? = null) : FilterInputStream(stream) {
+    var bytesRead = 0L; private set
+
+    override fun read(): Int {
+        val b = super.read()
+        if (b >= 0) {
+            out.write(b)
+            onRead(1)
         }
+        return b
+    }
 
-        job.ensureActive()
-        out.write(buf, 0, bufLen)
-        total += bufLen
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val n = super.read(b, off, len)
+        if (n > 0) {
+            out.write(b, off, n)
+            onRead(n)
+        }
+        return n
+    }
 
-        progress?.addAndGet(bufLen.toLong())
+    // skipped bytes have to be written too
+    override fun skip(n: Long): Long {
+        val buf = ByteArray(minOf(n, 8192L).toInt())
+        val len = read(buf, 0, buf.size)
+        return maxOf(len, 0).toLong()
+    }
+
+    override fun markSupported() = false
+
+    private fun onRead(n: Int) {
+        bytesRead += n
+        progress?.addAndGet(n.toLong())
+    }
+}
+
+// Closing it doesn't close the underlying stream. Allows to release resources of a wrapping stream
+// (e.g. Inflater of GZIPInputStream) while the underlying stream remains in use
+class NonClosingInputStream(stream: InputStream) : FilterInputStream(stream) {
+    override fun close() {}
+}
+
+// Fails with an IOException as soon as the stream turns out to be longer than limit, without
+// returning bytes that are past the limit. Protects against endless response bodies from mirrors
+class LimitedInputStream(stream: InputStream, private val limit: Long) : FilterInputStream(stream) {
+    private var bytesRead = 0L
+
+    override fun read(): Int {
+        val b = super.read()
+        if (b >= 0) {
+            onRead(1)
+        }
+        return b
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        // reading one byte past the limit is enough to detect that it's exceeded
+        val n = super.read(b, off, minOf(len.toLong(), limit - bytesRead + 1).toInt())
+        if (n > 0) {
+            onRead(n)
+        }
+        return n
+    }
+
+    override fun skip(n: Long): Long {
+        return super.skip(minOf(n, limit - bytesRead + 1)).also { onRead(it) }
+    }
+
+    override fun markSupported() = false
+
+    private fun onRead(n: Int) = onRead(n.toLong())
+
+    private fun onRead(n: Long) {
+        bytesRead += n
+        if (bytesRead > limit) {
+            throw IOException("stream is longer than $limit bytes")
+        }
     }
-    return total
+}
+
+fun hexStringToByteArray(s: String): ByteArray {
+    // each byte takes 2 characters, so length must be even
+    require(s.length.isEven())
+
+    val len = s.length / 2
+    val arr = ByteArray(len)
+    for (i in 0 until len) {
+        val off = i shl 1
+        val top: Int = Character.digit(s[off].code, 16)
+        val bot: Int = Character.digit(s[off + 1].code, 16)
+        arr[i] = ((top shl 4) or bot).toByte()
+    }
+    return arr
+}
+
+fun byteArrayToHexString(arr: ByteArray): String {
+    val sb = StringBuilder(arr.size * 2)
+    for (b in arr) {
+        val v = b.toInt() and 0xff
+        sb.append(Character.forDigit(v shr 4, 16))
+        sb.append(Character.forDigit(v and 0xf, 16))
+    }
+    return sb.toString()
 }
 
 fun Boolean.toInt() = if (this) 1 else 0
@@ -66,6 +194,21 @@ inline val Int.kilobytes get() = this * 1_000L
 inline val Int.megabytes get() = this * 1_000_000L
 inline val Int.gigabytes get() = this * 1_000_000_000L
 
+// Blocks the calling thread for timeoutMs, or until the job is cancelled. Unlike Thread.sleep(),
+// cancellation is observed right away, CancellationException is thrown in that case
+fun Job.blockingDelay(timeoutMs: Long) {
+    // child job is cancelled as soon as this job is cancelled, before this job completes
+    val child = Job(this)
+    val latch = CountDownLatch(1)
+    child.invokeOnCompletion { latch.countDown() }
+    try {
+        latch.await(timeoutMs, TimeUnit.MILLISECONDS)
+    } finally {
+        child.complete()
+    }
+    ensureActive()
+}
+
 fun Deferred<Unit>.invokeOnCompletionOnMainThread(block: (t: Throwable?) -> Unit) {
     invokeOnCompletion { t: Throwable? ->
         mainHandler.post {
@@ -74,15 +217,6 @@ fun Deferred<Unit>.invokeOnCompletionOnMainThread(block: (t: Throwable?) -> Unit
     }
 }
 
-fun JSONArray.asStringList(): List<String> {
-    return object : AbstractList<String>() {
-        override val size: Int
-            get() = length()
-
-        override fun get(index: Int) = getString(index)
-    }
-}
-
 inline fun <K, V> ArrayMap<K, V>.forEachEntry(block : (K, V) -> Unit) {
     val len = size
     for (i in 0 until len) {